@@ -8,5 +8,5 @@ package datamodel;
  * Author: Anas H. Sulaiman 
  */
 public enum Field {
-	id, name, info, ref, privy, username, password, tags, dateadd, datemod, image
+	id, name, info, ref, privy, username, password, tags, dateadd, datemod, image, color, parent, group
 }
@@ -4,33 +4,33 @@
 
 package datamodel;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Objects;
 
 /**
  * Author: Anas H. Sulaiman 
  */
 public class Image {
-	private static final List<Image> instances = new ArrayList<>();
 	long id;
 	byte[] data;
+	DataLoader loader; // null
 
 	public Image() {
-		this(-1, null);
+		this(-1, (byte[]) null);
 	}
 
 	public Image(long id, byte[] data) {
 		this.id = id;
 		this.data = data;
-
-		instances.add(this);
+		this.loader = null;
 	}
 
-	public static Image getIfExists(long id) {
-		for (Image img : instances) {
-			if (img.getId() == id) return img;
-		}
-		return null;
+	/**
+	 * Constructs a handle to a stored image. The data is not read until {@link #getData()} is first called.
+	 */
+	public Image(long id, DataLoader loader) {
+		this.id = id;
+		this.data = null;
+		this.loader = Objects.requireNonNull(loader);
 	}
 
 	public long getId() {
@@ -41,16 +41,41 @@ public class Image {
 		this.id = id;
 	}
 
+	/**
+	 * Loads the data first if this is a handle that hasn't been loaded yet.
+	 *
+	 * @throws IllegalStateException if the data couldn't be loaded
+	 */
 	public byte[] getData() {
+		if (loader != null) {
+			try {
+				data = loader.loadData(id);
+			} catch (Exception e) {
+				throw new IllegalStateException("image data could not be loaded", e);
+			}
+			loader = null;
+		}
 		return data;
 	}
 
+	/**
+	 * The items holding this image don't notice the change; pass it to {@link Item#setImage(Image)} again to have it
+	 * stored.
+	 */
 	public void setData(byte[] data) {
 		this.data = data;
+		this.loader = null;
+	}
+
+	/**
+	 * @return false if this is a handle whose data hasn't been loaded yet, true otherwise.
+	 */
+	public boolean isLoaded() {
+		return loader == null;
 	}
 
 	public boolean isNull() {
-		return data == null;
+		return data == null && loader == null;
 	}
 
 	@Override
@@ -68,4 +93,8 @@ public class Image {
 	public int hashCode() {
 		return (int) (id ^ (id >>> 32));
 	}
+
+	public interface DataLoader {
+		public byte[] loadData(long id) throws Exception;
+	}
 }
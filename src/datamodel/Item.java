@@ -29,6 +29,8 @@ public class Item {
 	Timestamp dateadd;
 	Timestamp datemod;
 	Image image; // null
+	// the fields changed since this item was last loaded or stored; all of them for a new item
+	private final EnumSet<Field> dirty = EnumSet.allOf(Field.class);
 
 	/**
 	 * Constructs a new Item with the following defaults:
@@ -131,8 +133,10 @@ public class Item {
 	}
 
 	public void setName(String name) {
-		this.name = name.trim();
-		setDatemod(Utils.getInstance().nowTs());
+		name = name.trim();
+		if (name.equals(this.name)) return;
+		this.name = name;
+		touch(Field.name);
 	}
 
 	public String getInfo() {
@@ -140,8 +144,10 @@ public class Item {
 	}
 
 	public void setInfo(String info) {
-		this.info = info.trim();
-		setDatemod(Utils.getInstance().nowTs());
+		info = info.trim();
+		if (info.equals(this.info)) return;
+		this.info = info;
+		touch(Field.info);
 	}
 
 	public String getRef() {
@@ -150,9 +156,11 @@ public class Item {
 
 	public void setRef(String ref) {
 		String s;
-		this.ref = ref == null ? null : ((s = ref.trim()).isEmpty() ? null : s);
+		ref = ref == null ? null : ((s = ref.trim()).isEmpty() ? null : s);
+		if (Objects.equals(ref, this.ref)) return;
+		this.ref = ref;
 		D.checkValidation(validateRef());
-		setDatemod(Utils.getInstance().nowTs());
+		touch(Field.ref);
 	}
 
 	private boolean validateRef() {
@@ -182,8 +190,9 @@ public class Item {
 	}
 
 	public void setPrivy(boolean state) {
+		if (state == this.privy) return;
 		this.privy = state;
-		setDatemod(Utils.getInstance().nowTs());
+		touch(Field.privy);
 	}
 
 	public String getUsername() {
@@ -191,8 +200,10 @@ public class Item {
 	}
 
 	public void setUsername(String username) {
-		this.username = username.trim();
-		setDatemod(Utils.getInstance().nowTs());
+		username = username.trim();
+		if (username.equals(this.username)) return;
+		this.username = username;
+		touch(Field.username);
 	}
 
 	public String getPassword() {
@@ -200,8 +211,9 @@ public class Item {
 	}
 
 	public void setPassword(String password) {
-		this.password = Objects.requireNonNull(password);
-		setDatemod(Utils.getInstance().nowTs());
+		if (Objects.requireNonNull(password).equals(this.password)) return;
+		this.password = password;
+		touch(Field.password);
 	}
 
 	/**
@@ -216,9 +228,10 @@ public class Item {
 	 */
 	public void setTags(Collection<Tag> tags) {
 		Objects.requireNonNull(tags);
+		if (this.tags.size() == tags.size() && this.tags.containsAll(tags)) return;
 		this.tags.clear();
 		this.tags.addAll(tags);
-		setDatemod(Utils.getInstance().nowTs());
+		touch(Field.tags);
 	}
 
 	public Timestamp getDateadd() {
@@ -227,7 +240,11 @@ public class Item {
 
 	public void setDateadd(Timestamp dateadd) {
 		this.dateadd = Objects.requireNonNull(dateadd);
-		if (this.dateadd.compareTo(this.datemod) > 0) this.datemod = new Timestamp(this.dateadd.getTime());
+		dirty.add(Field.dateadd);
+		if (this.dateadd.compareTo(this.datemod) > 0) {
+			this.datemod = new Timestamp(this.dateadd.getTime());
+			dirty.add(Field.datemod);
+		}
 	}
 
 	public Timestamp getDatemod() {
@@ -235,24 +252,31 @@ public class Item {
 	}
 
 	public void setDatemod(Timestamp datemod) {
-		if (datemod.compareTo(this.dateadd) >= 0) this.datemod = datemod;
+		if (datemod.compareTo(this.dateadd) < 0) return;
+		this.datemod = datemod;
+		dirty.add(Field.datemod);
 	}
 
 	public Image getImage() {
 		return image;
 	}
 
+	/**
+	 * Setting the same image again marks it as changed too, which is how a change made through
+	 * {@link Image#setData(byte[])} gets stored.
+	 */
 	public void setImage(Image image) {
+		if (image == null && this.image == null) return;
 		this.image = image;
-		setDatemod(Utils.getInstance().nowTs());
+		touch(Field.image);
 	}
 
 	public void addTag(Tag tag) {
-		if (this.tags.add(tag)) setDatemod(Utils.getInstance().nowTs());
+		if (this.tags.add(tag)) touch(Field.tags);
 	}
 
 	public void removeTag(Tag tag) {
-		if (this.tags.remove(tag)) setDatemod(Utils.getInstance().nowTs());
+		if (this.tags.remove(tag)) touch(Field.tags);
 	}
 
 	public void removeTagByName(String tagName) {
@@ -265,7 +289,7 @@ public class Item {
 		}
 		if (toRemove != null) {
 			this.tags.remove(toRemove);
-			setDatemod(Utils.getInstance().nowTs());
+			touch(Field.tags);
 		}
 	}
 
@@ -287,6 +311,43 @@ public class Item {
 		}
 	}
 
+	/**
+	 * Marks the specified field as changed and bumps datemod.
+	 */
+	private void touch(Field field) {
+		dirty.add(field);
+		setDatemod(Utils.getInstance().nowTs());
+	}
+
+	/**
+	 * @return true if any field changed since this item was last loaded or stored
+	 */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	public boolean isDirty(Field field) {
+		return dirty.contains(field);
+	}
+
+	/**
+	 * @return a copy of the set of fields changed since this item was last loaded or stored
+	 */
+	public Set<Field> getDirtyFields() {
+		return EnumSet.copyOf(dirty);
+	}
+
+	/**
+	 * Marks all fields as unchanged; called once this item matches its stored copy.
+	 */
+	public void markClean() {
+		dirty.clear();
+	}
+
+	public void markClean(Field... fields) {
+		for (Field f : fields) dirty.remove(f);
+	}
+
 	/**
 	 * @param sep tags separator. if it's an empty string, this method will use comma "," as a separator
 	 * @return a separated list of this item's tags or empty string if there isn't any
@@ -364,6 +425,7 @@ public class Item {
 		other.dateadd.setTime(this.dateadd.getTime());
 		other.datemod.setTime(this.datemod.getTime());
 		other.image = this.image;
+		other.dirty.addAll(this.dirty);
 	}
 
 	public enum RefType {
@@ -6,9 +6,11 @@ package datamodel;
 
 import utils.D;
 import utils.Utils;
+import utils.WeakValueMultimap;
 
 import java.sql.Timestamp;
-import java.util.LinkedHashSet;
+import java.util.EnumSet;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -20,7 +22,9 @@ import java.util.regex.Pattern;
 public class Tag {
 	private static final String ALLOWED_CHARS = "(?U)^\\w*$";
 	private static final Pattern pattern = Pattern.compile(ALLOWED_CHARS);
-	private static final Set<Tag> instances = new LinkedHashSet<>();
+	// tags are looked up by id and by case-folded name; unused tags are left for the garbage collector
+	private static final WeakValueMultimap<Long, Tag> instancesById = new WeakValueMultimap<>();
+	private static final WeakValueMultimap<String, Tag> instancesByName = new WeakValueMultimap<>();
 	long id;
 	Long parentId; // null
 	String name;
@@ -29,6 +33,8 @@ public class Tag {
 	Timestamp datemod;
 	TagGroup group; // null
 	private Utils u = Utils.getInstance();
+	// the fields changed since this tag was last loaded or stored; all of them for a new tag
+	private final EnumSet<Field> dirty = EnumSet.allOf(Field.class);
 
 
 	/**
@@ -86,21 +92,32 @@ public class Tag {
 		this.dateadd = Objects.requireNonNull(dateadd);
 		setDatemod(datemod);
 
-		instances.add(this);
+		register();
 	}
 
 	public static Tag getIfExists(long id) {
-		for (Tag t : instances) {
-			if (t.getId() == id) return t;
-		}
-		return null;
+		return instancesById.get(id);
 	}
 
 	public static Tag getIfExists(String name) {
-		for (Tag t : instances) {
-			if (t.getName().equalsIgnoreCase(name)) return t;
-		}
-		return null;
+		return instancesByName.get(fold(name));
+	}
+
+	/**
+	 * Folds the case the same way {@link String#equalsIgnoreCase(String)} compares characters.
+	 */
+	private static String fold(String name) {
+		return name.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+	}
+
+	private void register() {
+		if (id >= 0) instancesById.put(id, this);
+		instancesByName.put(fold(name), this);
+	}
+
+	private void unregister() {
+		instancesById.remove(id, this);
+		instancesByName.remove(fold(name), this);
 	}
 
 	public static boolean isValidTagName(String name) {
@@ -112,7 +129,9 @@ public class Tag {
 	}
 
 	public void setId(long id) {
+		unregister();
 		this.id = id;
+		register();
 	}
 
 	public Long getParentId() {
@@ -120,8 +139,9 @@ public class Tag {
 	}
 
 	public void setParentId(Long parentId) {
+		if (Objects.equals(parentId, this.parentId)) return;
 		this.parentId = parentId;
-		setDatemod(u.nowTs());
+		touch(Field.parent);
 	}
 
 	public TagGroup getGroup() {
@@ -129,8 +149,9 @@ public class Tag {
 	}
 
 	public void setGroup(TagGroup group) {
+		if (group == this.group) return;
 		this.group = group;
-		setDatemod(u.nowTs());
+		touch(Field.group);
 	}
 
 	public String getName() {
@@ -140,8 +161,11 @@ public class Tag {
 	public void setName(String name) {
 		name = name.trim();
 		D.checkValidation(isValidTagName(name));
+		if (name.equals(this.name)) return;
+		unregister();
 		this.name = name;
-		setDatemod(u.nowTs());
+		register();
+		touch(Field.name);
 	}
 
 	public String getColor() {
@@ -151,8 +175,9 @@ public class Tag {
 	public void setColor(String color) {
 		color = color.trim();
 		if (!color.isEmpty()) D.checkValidation(u.isHexColor(color));
+		if (color.equals(this.color)) return;
 		this.color = color;
-		setDatemod(u.nowTs());
+		touch(Field.color);
 	}
 
 	public Timestamp getDateadd() {
@@ -161,7 +186,11 @@ public class Tag {
 
 	public void setDateadd(Timestamp dateadd) {
 		this.dateadd = Objects.requireNonNull(dateadd);
-		if (this.dateadd.compareTo(this.datemod) > 0) this.datemod = new Timestamp(this.dateadd.getTime());
+		dirty.add(Field.dateadd);
+		if (this.dateadd.compareTo(this.datemod) > 0) {
+			this.datemod = new Timestamp(this.dateadd.getTime());
+			dirty.add(Field.datemod);
+		}
 	}
 
 	public Timestamp getDatemod() {
@@ -169,7 +198,42 @@ public class Tag {
 	}
 
 	public void setDatemod(Timestamp datemod) {
-		if (datemod.compareTo(this.dateadd) >= 0) this.datemod = datemod;
+		if (datemod.compareTo(this.dateadd) < 0) return;
+		this.datemod = datemod;
+		dirty.add(Field.datemod);
+	}
+
+	/**
+	 * Marks the specified field as changed and bumps datemod.
+	 */
+	private void touch(Field field) {
+		dirty.add(field);
+		setDatemod(u.nowTs());
+	}
+
+	/**
+	 * @return true if any field changed since this tag was last loaded or stored
+	 */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	public boolean isDirty(Field field) {
+		return dirty.contains(field);
+	}
+
+	/**
+	 * @return a copy of the set of fields changed since this tag was last loaded or stored
+	 */
+	public Set<Field> getDirtyFields() {
+		return EnumSet.copyOf(dirty);
+	}
+
+	/**
+	 * Marks all fields as unchanged; called once this tag matches its stored copy.
+	 */
+	public void markClean() {
+		dirty.clear();
 	}
 
 	public boolean isNull() {
@@ -205,12 +269,15 @@ public class Tag {
 	}
 
 	public void copyTo(Tag other) {
+		other.unregister();
 		other.id = this.id;
+		other.name = this.name;
+		other.register();
 		other.parentId = this.parentId;
 		other.group = this.group;
-		other.name = this.name;
 		other.color = this.color;
 		other.dateadd.setTime(this.dateadd.getTime());
 		other.datemod.setTime(this.datemod.getTime());
+		other.dirty.addAll(this.dirty);
 	}
 }
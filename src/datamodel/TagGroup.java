@@ -4,14 +4,16 @@
 
 package datamodel;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import utils.WeakValueMultimap;
+
+import java.util.Locale;
 
 /**
  * Author: Anas H. Sulaiman 
  */
 public class TagGroup {
-	private static final Set<TagGroup> instances = new LinkedHashSet<>();
+	private static final WeakValueMultimap<Long, TagGroup> instancesById = new WeakValueMultimap<>();
+	private static final WeakValueMultimap<String, TagGroup> instancesByName = new WeakValueMultimap<>();
 	long id;
 	String name;
 
@@ -23,21 +25,32 @@ public class TagGroup {
 		this.id = id;
 		this.name = name.trim();
 
-		instances.add(this);
+		register();
 	}
 
 	public static TagGroup getIfExists(long id) {
-		for (TagGroup tg : instances) {
-			if (tg.getId() == id) return tg;
-		}
-		return null;
+		return instancesById.get(id);
 	}
 
 	public static TagGroup getIfExists(String name) {
-		for (TagGroup tg : instances) {
-			if (tg.getName().equalsIgnoreCase(name)) return tg;
-		}
-		return null;
+		return instancesByName.get(fold(name));
+	}
+
+	/**
+	 * Folds the case the same way {@link String#equalsIgnoreCase(String)} compares characters.
+	 */
+	private static String fold(String name) {
+		return name.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+	}
+
+	private void register() {
+		if (id >= 0) instancesById.put(id, this);
+		instancesByName.put(fold(name), this);
+	}
+
+	private void unregister() {
+		instancesById.remove(id, this);
+		instancesByName.remove(fold(name), this);
 	}
 
 	public long getId() {
@@ -45,7 +58,9 @@ public class TagGroup {
 	}
 
 	public void setId(long id) {
+		unregister();
 		this.id = id;
+		register();
 	}
 
 	public String getName() {
@@ -53,7 +68,9 @@ public class TagGroup {
 	}
 
 	public void setName(String name) {
+		unregister();
 		this.name = name.trim();
+		register();
 	}
 
 	public boolean isNull() {
@@ -0,0 +1,430 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A binary backup of the rows of a library's tables.
+ * <p>Rows are read in {@code _ROWID_} order a chunk at a time, so no result set stays open for long, and written in
+ * blocks of about {@value #BLOCK_BYTES} bytes. Each block is compressed and encrypted on its own, which lets a
+ * fork-join pool work on several blocks at once while they are read or written in order.</p>
+ * <p>The format is a header followed by the blocks:</p>
+ * <pre>
+ * header: magic "TB2BK", format version, schema version, salt (16 bytes), table count,
+ *         and for each table: name, column count, column names
+ * block:  table index, row count, payload length, IV (16 bytes), payload
+ * end:    table index -1
+ * </pre>
+ * The payload is the deflated rows of the block, encrypted with AES/CBC under a key derived from the password and the
+ * salt.
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class BlockBackup {
+	private static final byte[] MAGIC = "TB2BK".getBytes(StandardCharsets.US_ASCII);
+	private static final int FORMAT_VERSION = 1;
+	private static final int BLOCK_BYTES = 1024 * 1024;
+	private static final int FETCH_ROWS = 1000;
+	private static final int KEY_ITERATIONS = 10000;
+	// value types of the row encoding
+	private static final byte NULL = 0, LONG = 1, INT = 2, BOOLEAN = 3, STRING = 4, BYTES = 5, TIMESTAMP = 6, DOUBLE = 7;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private final char[] password;
+	private final int parallelism;
+
+	/**
+	 * Uses a thread per available processor.
+	 */
+	public BlockBackup(String password) {
+		this(password, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of threads compressing and encrypting blocks
+	 */
+	public BlockBackup(String password, int parallelism) {
+		D.checkValidation(parallelism > 0);
+		this.password = password.toCharArray();
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return true if the specified file starts like a block backup
+	 */
+	public static boolean isBlockBackup(String path) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		try (InputStream in = new FileInputStream(path)) {
+			int n = 0, r;
+			while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) n += r;
+			return n == head.length && Arrays.equals(head, MAGIC);
+		}
+	}
+
+	/**
+	 * Writes the rows of the specified tables. The caller is responsible for keeping them from changing meanwhile.
+	 */
+	public void write(Connection con, Map<String, String> sql, List<String> tables, int schemaVersion, OutputStream os) throws SQLException, IOException {
+		byte[] salt = new byte[16];
+		RANDOM.nextBytes(salt);
+		final SecretKeySpec key = deriveKey(salt);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, BLOCK_BYTES));
+		out.write(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(schemaVersion);
+		out.write(salt);
+		out.writeInt(tables.size());
+		List<List<String>> columns = new ArrayList<>(tables.size());
+		for (String table : tables) {
+			List<String> names = columnNames(con, table);
+			columns.add(names);
+			out.writeUTF(table);
+			out.writeInt(names.size());
+			for (String n : names) out.writeUTF(n);
+		}
+
+		ForkJoinPool workers = new ForkJoinPool(parallelism);
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		try {
+			for (int t = 0; t < tables.size(); ++t) {
+				int columnCount = columns.get(t).size();
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(BLOCK_BYTES + BLOCK_BYTES / 4);
+				DataOutputStream rows = new DataOutputStream(buf);
+				int count = 0;
+				long after = Long.MIN_VALUE;
+				try (PreparedStatement ps = con.prepareStatement(sql.get("select_rows_after").replace("TABLE_NAME", tables.get(t)))) {
+					int fetched;
+					do {
+						ps.setLong(1, after);
+						ps.setInt(2, FETCH_ROWS);
+						ResultSet rs = ps.executeQuery();
+						fetched = 0;
+						while (rs.next()) {
+							fetched++;
+							after = rs.getLong(1);
+							for (int c = 0; c < columnCount; ++c) writeValue(rows, rs.getObject(c + 2));
+							if (++count == 1 || buf.size() < BLOCK_BYTES) continue;
+							submit(workers, pending, out, encoder(key, t, count, buf.toByteArray()));
+							buf.reset();
+							count = 0;
+						}
+						rs.close();
+					} while (fetched == FETCH_ROWS);
+				}
+				if (count > 0) submit(workers, pending, out, encoder(key, t, count, buf.toByteArray()));
+			}
+			while (!pending.isEmpty()) out.write(get(pending.poll()));
+			out.writeInt(-1);
+			out.flush();
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Replaces the rows of the specified tables with those in the backup, in one transaction: a wrong password or a
+	 * damaged file leaves the tables as they were. Referential integrity is off while the rows go in.
+	 * <p>A backup of an older schema version keeps its rows as they were; the caller migrates them, starting from the
+	 * returned version. Tables the backup doesn't have are left empty.</p>
+	 *
+	 * @param tables the tables of the library, see {@link #write(Connection, Map, List, int, OutputStream)}
+	 * @return the schema version of the backup
+	 * @throws IOException if the file isn't a block backup of the specified schema version or an older one, or is
+	 *                     damaged
+	 */
+	public int read(Connection con, Map<String, String> sql, List<String> tables, int schemaVersion, InputStream is) throws SQLException, IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, BLOCK_BYTES));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC) || in.readInt() != FORMAT_VERSION) throw new IOException("not a block backup");
+		int version = in.readInt();
+		if (version > schemaVersion) throw new IOException("backup of schema version " + version + ", expected " + schemaVersion + " or older");
+		byte[] salt = new byte[16];
+		in.readFully(salt);
+		final SecretKeySpec key = deriveKey(salt);
+		int tableCount = in.readInt();
+		List<String> backedUp = new ArrayList<>(tableCount);
+		List<List<String>> columns = new ArrayList<>(tableCount);
+		for (int t = 0; t < tableCount; ++t) {
+			String table = in.readUTF();
+			if (!tables.contains(table)) throw new IOException("backup of an unknown table " + table);
+			backedUp.add(table);
+			int n = in.readInt();
+			List<String> names = new ArrayList<>(n);
+			for (int c = 0; c < n; ++c) names.add(in.readUTF());
+			columns.add(names);
+		}
+
+		boolean commitState = con.getAutoCommit();
+		ForkJoinPool workers = new ForkJoinPool(parallelism);
+		Deque<Future<Object[]>> pending = new ArrayDeque<>();
+		setReferentialIntegrity(con, sql, false);
+		List<PreparedStatement> inserts = new ArrayList<>(tableCount);
+		try {
+			con.setAutoCommit(false);
+			// TRUNCATE commits, so the rows are deleted instead
+			for (String table : tables) {
+				try (PreparedStatement ps = con.prepareStatement(sql.get("delete_table_rows").replace("TABLE_NAME", table))) {
+					ps.execute();
+				}
+			}
+			for (int t = 0; t < tableCount; ++t) inserts.add(con.prepareStatement(insertSql(backedUp.get(t), columns.get(t))));
+			int table;
+			while ((table = in.readInt()) >= 0) {
+				if (table >= tableCount) throw new IOException("damaged backup");
+				int rows = in.readInt();
+				byte[] iv = new byte[16];
+				byte[] payload = new byte[in.readInt()];
+				in.readFully(iv);
+				in.readFully(payload);
+				pending.add(workers.submit(decoder(key, table, rows, iv, payload)));
+				if (pending.size() > 2 * parallelism) insertBlock(inserts, columns, get(pending.poll()));
+			}
+			while (!pending.isEmpty()) insertBlock(inserts, columns, get(pending.poll()));
+			con.commit();
+		} catch (SQLException | IOException | RuntimeException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			for (PreparedStatement ps : inserts) ps.close();
+			workers.shutdownNow();
+			con.setAutoCommit(commitState);
+			setReferentialIntegrity(con, sql, true);
+		}
+		return version;
+	}
+
+	private static void setReferentialIntegrity(Connection con, Map<String, String> sql, boolean on) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(sql.get("set_referential_integrity"))) {
+			ps.setBoolean(1, on);
+			ps.execute();
+		}
+	}
+
+	private static List<String> columnNames(Connection con, String table) throws SQLException {
+		List<String> names = new ArrayList<>();
+		ResultSet rs = con.getMetaData().getColumns(null, "PUBLIC", table, "%");
+		while (rs.next()) names.add(rs.getString("COLUMN_NAME"));
+		rs.close();
+		return names;
+	}
+
+	private static String insertSql(String table, List<String> columns) {
+		StringBuilder names = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (String c : columns) {
+			names.append(names.length() == 0 ? "" : ", ").append(c);
+			values.append(values.length() == 0 ? "?" : ", ?");
+		}
+		return "INSERT INTO " + table + "(" + names + ") VALUES(" + values + ")";
+	}
+
+	/**
+	 * Inserts the rows of one decoded block.
+	 */
+	private static void insertBlock(List<PreparedStatement> inserts, List<List<String>> columns, Object[] block) throws SQLException, IOException {
+		int table = (Integer) block[0];
+		int rows = (Integer) block[1];
+		int columnCount = columns.get(table).size();
+		PreparedStatement ps = inserts.get(table);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[]) block[2]));
+		for (int r = 0; r < rows; ++r) {
+			for (int c = 0; c < columnCount; ++c) ps.setObject(c + 1, readValue(in));
+			ps.addBatch();
+		}
+		ps.executeBatch();
+	}
+
+	/**
+	 * Writes tasks' results in the order the tasks were submitted, keeping a few of them in flight.
+	 */
+	private void submit(ForkJoinPool workers, Deque<Future<byte[]>> pending, DataOutputStream out, Callable<byte[]> task) throws IOException {
+		pending.add(workers.submit(task));
+		if (pending.size() > 2 * parallelism) out.write(get(pending.poll()));
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return a task that compresses and encrypts a block, giving it as written to the file
+	 */
+	private static Callable<byte[]> encoder(final SecretKeySpec key, final int table, final int rows, final byte[] data) {
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				Deflater deflater = new Deflater();
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+				byte[] chunk = new byte[64 * 1024];
+				while (!deflater.finished()) deflated.write(chunk, 0, deflater.deflate(chunk));
+				deflater.end();
+
+				byte[] iv = new byte[16];
+				RANDOM.nextBytes(iv);
+				Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+				cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+				byte[] payload = cipher.doFinal(deflated.toByteArray());
+
+				ByteArrayOutputStream block = new ByteArrayOutputStream(payload.length + 32);
+				DataOutputStream out = new DataOutputStream(block);
+				out.writeInt(table);
+				out.writeInt(rows);
+				out.writeInt(payload.length);
+				out.write(iv);
+				out.write(payload);
+				return block.toByteArray();
+			}
+		};
+	}
+
+	/**
+	 * @return a task that decrypts and decompresses a block, giving its table index, row count and rows
+	 */
+	private static Callable<Object[]> decoder(final SecretKeySpec key, final int table, final int rows, final byte[] iv, final byte[] payload) {
+		return new Callable<Object[]>() {
+			@Override
+			public Object[] call() throws Exception {
+				byte[] deflated;
+				try {
+					Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+					cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+					deflated = cipher.doFinal(payload);
+				} catch (GeneralSecurityException e) {
+					throw new IOException("wrong password or damaged backup", e);
+				}
+
+				Inflater inflater = new Inflater();
+				inflater.setInput(deflated);
+				ByteArrayOutputStream data = new ByteArrayOutputStream(deflated.length * 3);
+				byte[] chunk = new byte[64 * 1024];
+				try {
+					while (!inflater.finished()) {
+						int n = inflater.inflate(chunk);
+						if (n == 0 && inflater.needsInput()) throw new IOException("damaged backup");
+						data.write(chunk, 0, n);
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("damaged backup", e);
+				} finally {
+					inflater.end();
+				}
+				return new Object[]{table, rows, data.toByteArray()};
+			}
+		};
+	}
+
+	private SecretKeySpec deriveKey(byte[] salt) throws IOException {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			byte[] key = factory.generateSecret(new PBEKeySpec(password, salt, KEY_ITERATIONS, 128)).getEncoded();
+			return new SecretKeySpec(key, "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object v) throws IOException, SQLException {
+		if (v == null) {
+			out.writeByte(NULL);
+		} else if (v instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) v);
+		} else if (v instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) v);
+		} else if (v instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) v);
+		} else if (v instanceof String) {
+			// writeUTF is limited to 64 KB
+			byte[] b = ((String) v).getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if (v instanceof byte[]) {
+			byte[] b = (byte[]) v;
+			out.writeByte(BYTES);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if (v instanceof Timestamp) {
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((Timestamp) v).getTime());
+			out.writeInt(((Timestamp) v).getNanos());
+		} else if (v instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) v);
+		} else {
+			throw new SQLException("cannot back up a value of type " + v.getClass().getName());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL:
+				return null;
+			case LONG:
+				return in.readLong();
+			case INT:
+				return in.readInt();
+			case BOOLEAN:
+				return in.readBoolean();
+			case STRING: {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				return new String(b, StandardCharsets.UTF_8);
+			}
+			case BYTES: {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				return b;
+			}
+			case TIMESTAMP: {
+				Timestamp ts = new Timestamp(in.readLong());
+				ts.setNanos(in.readInt());
+				return ts;
+			}
+			case DOUBLE:
+				return in.readDouble();
+			default:
+				throw new IOException("damaged backup");
+		}
+	}
+}
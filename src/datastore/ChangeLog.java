@@ -0,0 +1,306 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import org.h2.api.Trigger;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Streams the changes of an in-memory library to its file on a background thread.
+ * <p>Triggers on every table of the in-memory database record each changed row in a {@code change_log} table. The
+ * record is written in the same transaction as the change, so rolled back changes never show up, and the log is
+ * read in the order the changes were committed. The background thread replays the log on the file database in
+ * batches, one transaction per batch, and then removes what it replayed.</p>
+ * <p>A failed replay is reported by the next {@link #flush()} or {@link #close()}.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class ChangeLog implements AutoCloseable {
+	private static final int BATCH_SIZE = 1000;
+	private static final long DELAY = 200; // ms
+	private final Connection mem;
+	private final Connection disk;
+	private final Map<String, String> sql;
+	// how to write the rows of each table to the file database, by table name
+	private final Map<String, Replay> replays;
+	private final Thread worker;
+	private long applied; // the sequence number of the last change replayed
+	private boolean flushRequested;
+	private boolean closed;
+	private Exception failure;
+
+	/**
+	 * Starts replaying the log. The log must have been installed with {@link #install(java.sql.Connection, java.util.Map)}.
+	 *
+	 * @param mem  a connection of its own to the in-memory database; closed by {@link #close()}
+	 * @param disk a connection to the file database; left open
+	 */
+	ChangeLog(Connection mem, Connection disk, Map<String, String> sql) {
+		this.mem = Objects.requireNonNull(mem);
+		this.disk = Objects.requireNonNull(disk);
+		this.sql = Objects.requireNonNull(sql);
+		this.replays = new HashMap<>();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "change-log");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Creates the log table and a trigger on every other table of the database.
+	 */
+	static void install(Connection con, Map<String, String> sql) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(sql.get("create_change_log"))) {
+			ps.execute();
+		}
+		List<String> tables = new ArrayList<>();
+		ResultSet rs = con.getMetaData().getTables(null, "PUBLIC", "%", new String[]{"TABLE"});
+		while (rs.next()) {
+			String table = rs.getString("TABLE_NAME");
+			if (!table.equalsIgnoreCase("change_log")) tables.add(table);
+		}
+		rs.close();
+		for (String table : tables) {
+			try (PreparedStatement ps = con.prepareStatement(sql.get("create_change_trigger").replace("TABLE", table))) {
+				ps.execute();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every change committed before this call is written to the file database.
+	 *
+	 * @throws Exception the failure of a replay since the last call to this method
+	 * @throws IllegalStateException if the log is closed
+	 */
+	public void flush() throws Exception {
+		long target;
+		try (PreparedStatement ps = mem.prepareStatement(sql.get("select_last_change"))) {
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			target = rs.getLong(1);
+		}
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("change log is closed");
+			flushRequested = true;
+			notifyAll();
+			while (applied < target && failure == null) wait();
+		}
+		rethrow();
+	}
+
+	/**
+	 * Writes what's left and stops the background thread.
+	 *
+	 * @throws Exception the failure of a replay since the last flush
+	 */
+	@Override
+	public void close() throws Exception {
+		try {
+			flush();
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			worker.join();
+			try {
+				mem.close();
+			} catch (SQLException ignored) {
+				// closed anyway
+			}
+		}
+	}
+
+	private synchronized void rethrow() throws Exception {
+		Exception e = failure;
+		failure = null;
+		if (e != null) throw e;
+	}
+
+	private void work() {
+		while (true) {
+			boolean stop;
+			synchronized (this) {
+				try {
+					if (!closed && !flushRequested) wait(DELAY);
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				flushRequested = false;
+				stop = closed;
+			}
+
+			try {
+				while (replayBatch() == BATCH_SIZE) {
+					// there may be more
+				}
+			} catch (Exception e) {
+				synchronized (this) {
+					if (failure == null) failure = e;
+					notifyAll();
+				}
+			}
+			if (stop) return;
+		}
+	}
+
+	/**
+	 * Replays the oldest changes in one transaction of the file database and removes them from the log.
+	 *
+	 * @return the number of changes replayed
+	 */
+	private int replayBatch() throws SQLException {
+		List<Object[]> changes = new ArrayList<>(BATCH_SIZE);
+		try (PreparedStatement ps = mem.prepareStatement(sql.get("select_changes"))) {
+			ps.setInt(1, BATCH_SIZE);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				changes.add(new Object[]{rs.getLong(1), rs.getString(2), rs.getObject(3), rs.getObject(4)});
+			}
+		}
+		if (changes.isEmpty()) return 0;
+
+		boolean commitState = disk.getAutoCommit();
+		disk.setAutoCommit(false);
+		try {
+			for (Object[] change : changes) {
+				replay((String) change[1]).apply((Object[]) change[2], (Object[]) change[3]);
+			}
+			disk.commit();
+		} catch (SQLException e) {
+			disk.rollback();
+			throw e;
+		} finally {
+			disk.setAutoCommit(commitState);
+		}
+
+		long last = (Long) changes.get(changes.size() - 1)[0];
+		try (PreparedStatement ps = mem.prepareStatement(sql.get("remove_changes"))) {
+			ps.setLong(1, last);
+			ps.executeUpdate();
+		}
+		synchronized (this) {
+			applied = last;
+			notifyAll();
+		}
+		return changes.size();
+	}
+
+	private Replay replay(String table) throws SQLException {
+		Replay r = replays.get(table);
+		if (r == null) replays.put(table, (r = new Replay(disk, table)));
+		return r;
+	}
+
+	/**
+	 * Writes the rows of one table, identified by its primary key, to the file database.
+	 */
+	private static class Replay {
+		final int[] keys; // the positions of the primary key columns in a row
+		final PreparedStatement merge;
+		final PreparedStatement delete;
+
+		Replay(Connection con, String table) throws SQLException {
+			DatabaseMetaData meta = con.getMetaData();
+			List<String> columns = new ArrayList<>();
+			ResultSet rs = meta.getColumns(null, "PUBLIC", table, "%");
+			while (rs.next()) columns.add(rs.getString("COLUMN_NAME"));
+			rs.close();
+			List<String> keyColumns = new ArrayList<>();
+			rs = meta.getPrimaryKeys(null, "PUBLIC", table);
+			while (rs.next()) keyColumns.add(rs.getString("COLUMN_NAME"));
+			rs.close();
+			if (keyColumns.isEmpty()) throw new SQLException("no primary key: " + table);
+
+			keys = new int[keyColumns.size()];
+			StringBuilder where = new StringBuilder();
+			for (int i = 0; i < keys.length; ++i) {
+				keys[i] = columns.indexOf(keyColumns.get(i));
+				where.append(i == 0 ? "" : " AND ").append(keyColumns.get(i)).append(" = ?");
+			}
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < columns.size(); ++i) values.append(i == 0 ? "?" : ", ?");
+			// rows come from a copy of this very database, so their columns are in the same order
+			merge = con.prepareStatement("MERGE INTO " + table + " KEY(" + join(keyColumns) + ") VALUES(" + values + ")");
+			delete = con.prepareStatement("DELETE FROM " + table + " WHERE " + where);
+		}
+
+		void apply(Object[] oldRow, Object[] newRow) throws SQLException {
+			if (oldRow != null && (newRow == null || !Arrays.equals(key(oldRow), key(newRow)))) {
+				Object[] key = key(oldRow);
+				for (int i = 0; i < key.length; ++i) delete.setObject(i + 1, key[i]);
+				delete.executeUpdate();
+			}
+			if (newRow != null) {
+				for (int i = 0; i < newRow.length; ++i) merge.setObject(i + 1, newRow[i]);
+				merge.executeUpdate();
+			}
+		}
+
+		private Object[] key(Object[] row) {
+			Object[] key = new Object[keys.length];
+			for (int i = 0; i < keys.length; ++i) key[i] = row[keys[i]];
+			return key;
+		}
+
+		private static String join(List<String> names) {
+			StringBuilder b = new StringBuilder();
+			for (String n : names) b.append(b.length() == 0 ? "" : ", ").append(n);
+			return b.toString();
+		}
+	}
+
+	/**
+	 * Records the changed rows of one table in the log. Instantiated by H2 for each trigger.
+	 */
+	public static class Capture implements Trigger {
+		private static final String INSERT = "INSERT INTO change_log(tbl, old_row, new_row) VALUES(?, ?, ?)";
+		private String table;
+		private Connection con;
+		private PreparedStatement insert;
+
+		@Override
+		public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type) {
+			this.table = tableName;
+		}
+
+		@Override
+		public synchronized void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+			// the connection of the session making the change, so the record shares its transaction
+			if (conn != con) {
+				if (insert != null) insert.close();
+				insert = conn.prepareStatement(INSERT);
+				con = conn;
+			}
+			insert.setString(1, table);
+			insert.setObject(2, oldRow);
+			insert.setObject(3, newRow);
+			insert.executeUpdate();
+		}
+
+		@Override
+		public synchronized void close() throws SQLException {
+			if (insert != null) insert.close();
+			insert = null;
+			con = null;
+		}
+
+		@Override
+		public void remove() {
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import java.util.Objects;
+
+/**
+ * Calls {@link IDAO#checkpoint()} on a background thread once {@code interval} has passed or {@code threshold} writes
+ * have been made since the last checkpoint, whichever comes first. Nothing is done while there are no writes.
+ * <p>A checkpoint writes only what changed since the previous one, so its cost follows the edits rather than the
+ * size of the library. A failed checkpoint is reported by {@link #close()}.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class Checkpointer implements AutoCloseable {
+	private static final long DEFAULT_INTERVAL = 30000; // ms
+	private static final long DEFAULT_THRESHOLD = 1000;
+	// how often the write count is looked at
+	private static final long POLL_MILLIS = 1000;
+	private final IDAO dao;
+	private final long interval;
+	private final long threshold;
+	private final Thread worker;
+	private long checkpointCount;
+	private boolean closed;
+	private Exception failure;
+
+	public Checkpointer(IDAO dao) {
+		this(dao, DEFAULT_INTERVAL, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param intervalMillis the longest time writes wait for a checkpoint
+	 * @param threshold      the number of writes that trigger a checkpoint before the interval is over
+	 */
+	public Checkpointer(IDAO dao, long intervalMillis, long threshold) {
+		D.checkValidation(intervalMillis > 0 && threshold > 0);
+		this.dao = Objects.requireNonNull(dao);
+		this.interval = intervalMillis;
+		this.threshold = threshold;
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "checkpointer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * @return the number of checkpoints made so far
+	 */
+	public synchronized long getCheckpointCount() {
+		return checkpointCount;
+	}
+
+	/**
+	 * Stops the background thread. The DAO is left open; closing it makes everything durable anyway.
+	 *
+	 * @throws Exception the failure of a checkpoint, if any
+	 */
+	@Override
+	public void close() throws Exception {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		worker.join();
+		Exception e;
+		synchronized (this) {
+			e = failure;
+			failure = null;
+		}
+		if (e != null) throw e;
+	}
+
+	private void work() {
+		long last = System.currentTimeMillis();
+		while (true) {
+			synchronized (this) {
+				try {
+					if (!closed) wait(Math.min(POLL_MILLIS, interval));
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				if (closed) return;
+			}
+
+			long writes = dao.getWritesSinceCheckpoint();
+			if (writes == 0) {
+				last = System.currentTimeMillis();
+				continue;
+			}
+			if (writes < threshold && System.currentTimeMillis() - last < interval) continue;
+
+			Exception error = null;
+			try {
+				dao.checkpoint();
+			} catch (Exception e) {
+				error = e;
+			}
+			last = System.currentTimeMillis();
+			synchronized (this) {
+				if (error != null && failure == null) failure = error;
+				checkpointCount++;
+			}
+		}
+	}
+}
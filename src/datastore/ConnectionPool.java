@@ -0,0 +1,217 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The connections of one database: a single writer connection guarded by a reentrant lock, and a few read-only
+ * connections that are lent to reading threads. Each connection comes with its own {@link StatementCache}.
+ * <p>A thread that holds the writer lock reads through the writer connection so it sees its own uncommitted changes.
+ * Other threads borrow a read connection for the length of a read, see {@link #acquireReader()}, and read committed
+ * snapshots (the database must be opened with MVCC), so they're never blocked by a long write transaction. Once all
+ * read connections are lent, further readers wait for one to be returned.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class ConnectionPool implements AutoCloseable {
+	private final String url;
+	private final String user;
+	private final String pass;
+	private final Map<String, String> sql;
+	private final StatementCache writer;
+	private final ReentrantLock writeLock;
+	private final AtomicLong writeCount;
+	private final int maxReaders;
+	private final List<StatementCache> readers; // all open read connections; guarded by this
+	private final Deque<StatementCache> idleReaders; // those not lent; guarded by this
+	private final ThreadLocal<Lease> lease;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the writer connection. Read connections are opened when needed, up to {@code maxReaders} of them.
+	 */
+	ConnectionPool(String url, String user, String pass, Map<String, String> sql, int maxReaders) throws SQLException {
+		D.checkValidation(maxReaders > 0);
+		this.url = Objects.requireNonNull(url);
+		this.user = user;
+		this.pass = pass;
+		this.sql = Objects.requireNonNull(sql);
+		Connection con = DriverManager.getConnection(url, user, pass);
+		con.setAutoCommit(true);
+		this.writer = new StatementCache(con, sql);
+		this.writeLock = new ReentrantLock();
+		this.writeCount = new AtomicLong(0);
+		this.maxReaders = maxReaders;
+		this.readers = new ArrayList<>(maxReaders);
+		this.idleReaders = new ArrayDeque<>(maxReaders);
+		this.lease = new ThreadLocal<>();
+		this.closed = false;
+	}
+
+	/**
+	 * Blocks until the writer connection is available to the current thread. Every call must be paired with a call
+	 * to {@link #unlockWriter()}.
+	 */
+	void lockWriter() {
+		writeLock.lock();
+		if (writeLock.getHoldCount() == 1) writeCount.incrementAndGet();
+	}
+
+	void unlockWriter() {
+		writeLock.unlock();
+	}
+
+	/**
+	 * @return the number of times the writer has been taken so far, not counting reentrant calls
+	 */
+	long getWriteCount() {
+		return writeCount.get();
+	}
+
+	/**
+	 * @return the statements of the writer connection
+	 * @throws IllegalStateException if the current thread doesn't hold the writer lock
+	 */
+	StatementCache writer() {
+		if (!writeLock.isHeldByCurrentThread()) throw new IllegalStateException("writer lock not held");
+		return writer;
+	}
+
+	/**
+	 * Lends a read connection to the current thread until the matching call to {@link #releaseReader()}, waiting
+	 * for one if all are lent. Calls may be nested. A thread that holds the writer lock reads through the writer and
+	 * doesn't take a read connection until it needs one.
+	 */
+	void acquireReader() throws SQLException {
+		Lease l = lease.get();
+		if (l == null) {
+			l = new Lease();
+			if (!writeLock.isHeldByCurrentThread()) l.stmts = takeReader();
+			lease.set(l);
+		}
+		l.depth++;
+	}
+
+	/**
+	 * Returns the read connection of the current thread once the outermost {@link #acquireReader()} is paired.
+	 */
+	void releaseReader() {
+		Lease l = lease.get();
+		if (l == null) throw new IllegalStateException("no reader acquired");
+		if (--l.depth > 0) return;
+		lease.remove();
+		if (l.stmts != null) returnReader(l.stmts);
+	}
+
+	/**
+	 * @return the statements of the writer connection if the current thread holds the writer lock, otherwise those
+	 * of the read connection lent to the current thread
+	 * @throws IllegalStateException if the current thread holds neither the writer lock nor a read connection
+	 */
+	StatementCache current() throws SQLException {
+		if (writeLock.isHeldByCurrentThread()) return writer;
+		Lease l = lease.get();
+		if (l == null) throw new IllegalStateException("no reader acquired");
+		// acquired while holding the writer lock, which has been released since
+		if (l.stmts == null) l.stmts = takeReader();
+		return l.stmts;
+	}
+
+	private synchronized StatementCache takeReader() throws SQLException {
+		while (true) {
+			if (closed) throw new SQLException("connection pool is closed");
+			if (!idleReaders.isEmpty()) return idleReaders.pop();
+			if (readers.size() < maxReaders) break;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for a read connection", e);
+			}
+		}
+		Connection con = DriverManager.getConnection(url, user, pass);
+		con.setAutoCommit(true);
+		con.setReadOnly(true);
+		StatementCache r = new StatementCache(con, sql);
+		readers.add(r);
+		return r;
+	}
+
+	private synchronized void returnReader(StatementCache r) {
+		// closed along with the pool otherwise
+		if (closed) return;
+		idleReaders.push(r);
+		notifyAll();
+	}
+
+	/**
+	 * Opens a connection to the database that isn't part of the pool. The caller is responsible for closing it.
+	 */
+	Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(url, user, pass);
+	}
+
+	/**
+	 * @return the number of open read connections
+	 */
+	public synchronized int getReaderCount() {
+		return readers.size();
+	}
+
+	/**
+	 * Closes the cached statements of all connections, which is needed after the schema has been replaced.
+	 */
+	synchronized void clear() {
+		writer.clear();
+		for (StatementCache r : readers) r.clear();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes all connections. Threads blocked on the writer lock will fail on their next statement.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (StatementCache r : readers) close(r);
+		readers.clear();
+		idleReaders.clear();
+		close(writer);
+		notifyAll();
+	}
+
+	private static void close(StatementCache stmts) {
+		stmts.close();
+		try {
+			stmts.getConnection().close();
+		} catch (SQLException ignored) {
+			// closed anyway
+		}
+	}
+
+	/**
+	 * The read connection lent to a thread and the number of nested acquisitions.
+	 */
+	private static class Lease {
+		StatementCache stmts; // null until needed if acquired while holding the writer lock
+		int depth;
+	}
+}
@@ -0,0 +1,22 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import java.util.Iterator;
+
+/**
+ * A forward-only iterator over stored records that reads them from the storage as it goes.
+ * Storage errors are thrown as {@link IllegalStateException} from {@link #hasNext()} and {@link #next()}.
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+public interface Cursor<T> extends Iterator<T>, AutoCloseable {
+
+	/**
+	 * Releases the cursor. Calling {@link #hasNext()} afterwards returns false.
+	 */
+	@Override
+	public void close();
+}
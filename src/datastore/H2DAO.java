@@ -4,19 +4,29 @@
 
 package datastore;
 
+import datamodel.Field;
 import datamodel.Image;
 import datamodel.Item;
 import datamodel.Tag;
 import datamodel.TagGroup;
 import utils.D;
 import utils.IOUtils;
+import utils.LongLongMap;
 import utils.Utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Author: Anas H. Sulaiman 
@@ -29,27 +39,104 @@ public class H2DAO implements IDAO {
 	private static final String DB_FILE_NAME = "tagbook2";
 	private static final String DB_FILE_EXT = "h2.db";
 	private static final String TEMP_DIR_SUFFIX = "_tb2";
+	/** The maximum number of ids bound to one id list parameter */
+	private static final int ID_CHUNK = 1000;
+	private static final long IMAGE_CACHE_BYTES = 16 * 1024 * 1024;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	/** The maximum number of read connections open at once; further readers wait for one of them */
+	private static final int MAX_READERS = 4;
+	/** The schema version create_db builds; migrate_db_N in sql.sql upgrades a library from version N - 1 to N */
+	private static final int SCHEMA_VERSION = 4;
+	/** Numbers the in-memory databases of this process */
+	private static final AtomicLong MEMORY_DBS = new AtomicLong(0);
+	/** The SET clause parts of partial updates, by the field they write */
+	private static final Map<Field, String> ITEM_ASSIGNMENTS = new EnumMap<>(Field.class);
+	private static final Map<Field, String> TAG_ASSIGNMENTS = new EnumMap<>(Field.class);
+
+	static {
+		ITEM_ASSIGNMENTS.put(Field.name, "name = TRIM(BOTH FROM ?)");
+		ITEM_ASSIGNMENTS.put(Field.info, "info = TRIM(BOTH FROM ?)");
+		ITEM_ASSIGNMENTS.put(Field.ref, "ref = TRIM(BOTH FROM ?)");
+		ITEM_ASSIGNMENTS.put(Field.privy, "privy = ?");
+		ITEM_ASSIGNMENTS.put(Field.username, "username = TRIM(BOTH FROM ?)");
+		ITEM_ASSIGNMENTS.put(Field.password, "password = ?");
+		ITEM_ASSIGNMENTS.put(Field.dateadd, "dateadd = ?");
+		ITEM_ASSIGNMENTS.put(Field.datemod, "datemod = ?");
+		ITEM_ASSIGNMENTS.put(Field.image, "imageid = ?");
+
+		TAG_ASSIGNMENTS.put(Field.name, "name = TRIM(BOTH FROM ?)");
+		TAG_ASSIGNMENTS.put(Field.color, "color = TRIM(BOTH FROM ?)");
+		TAG_ASSIGNMENTS.put(Field.dateadd, "dateadd = ?");
+		TAG_ASSIGNMENTS.put(Field.datemod, "datemod = ?");
+		TAG_ASSIGNMENTS.put(Field.parent, "parentid = ?");
+		TAG_ASSIGNMENTS.put(Field.group, "groupid = ?");
+	}
+
 	private final String filePath;
-	private final AtomicBoolean cancel;
-	private final AtomicBoolean working;
-	private Connection con;
+	private final StorageMode storageMode;
+	// every operation and cursor started before the last cancel is cancelled
+	private final AtomicLong cancels;
+	// operations in the order they began; guarded by itself
+	private final Set<Operation> running;
+	private final ThreadLocal<Operation> operation;
+	private volatile long lastProgress;
+	private final Image.DataLoader imageLoader;
+	private final ImageCache imageCache;
+	private ConnectionPool pool;
+	// memory mode only: a connection to the library file, and the log that streams changes to it
+	private Connection fileCon;
+	private ChangeLog changeLog;
+	// the writer count of the pool at the last checkpoint
+	private volatile long checkpointedWrites;
 	private String tempDirPath;
 	private String h2dbPath;
 	private Utils u = Utils.getInstance();
 	private IOUtils io = IOUtils.getInstance();
 	private Map<String, String> sql;
-
+	private TagHydration tagHydration;
+	private int batchSize;
+	private StorageProfile storageProfile;
+	// the number of bulk imports begun and not yet ended; guarded by the writer lock
+	private int bulkImports;
+
+	/**
+	 * A path ending with {@code .h2.db} is opened in {@link StorageMode#DIRECT} mode; any other path is a
+	 * {@link StorageMode#ZIP} library.
+	 */
 	public H2DAO(String path) throws Exception {
+		this(path, path.endsWith("." + DB_FILE_EXT) ? StorageMode.DIRECT : StorageMode.ZIP);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@code mode} isn't {@link StorageMode#ZIP} and the path doesn't end with
+	 *                                  {@code .h2.db}
+	 */
+	public H2DAO(String path, StorageMode mode) throws Exception {
+		D.checkValidation(mode == StorageMode.ZIP || path.endsWith("." + DB_FILE_EXT));
 		try {
 			Class.forName(DRIVER);
 		} catch (ClassNotFoundException e) {
 			throwException("missing.driver", e);
 		}
 		loadSql();
-		this.cancel = new AtomicBoolean(false);
-		this.working = new AtomicBoolean(false);
-		con = null;
+		this.cancels = new AtomicLong(0);
+		this.running = new LinkedHashSet<>();
+		this.operation = new ThreadLocal<>();
+		this.tagHydration = TagHydration.BATCH;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.storageProfile = StorageProfile.DEFAULT;
+		this.imageLoader = new Image.DataLoader() {
+			@Override
+			public byte[] loadData(long id) throws Exception {
+				byte[] data = imageCache.get(id);
+				if (data == null) imageCache.put(id, (data = loadImageData(id)));
+				return data;
+			}
+		};
+		this.imageCache = new ImageCache(IMAGE_CACHE_BYTES);
+		pool = null;
 		this.filePath = io.getAbsNormPath(path);
+		this.storageMode = mode;
 		this.tempDirPath = this.h2dbPath = "";
 	}
 
@@ -75,43 +162,334 @@ public class H2DAO implements IDAO {
 		return this.filePath;
 	}
 
+	public StorageMode getStorageMode() {
+		return storageMode;
+	}
+
+	public TagHydration getTagHydration() {
+		return tagHydration;
+	}
+
+	/**
+	 * Sets how the tags of loaded items are fetched. Defaults to {@link TagHydration#BATCH}.
+	 */
+	public void setTagHydration(TagHydration tagHydration) {
+		this.tagHydration = Objects.requireNonNull(tagHydration);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of new items {@link #addUpdateItems(java.util.Collection, boolean)} writes per batch and
+	 * transaction. Defaults to 500.
+	 *
+	 * @throws IllegalArgumentException if {@code batchSize} is not positive
+	 */
+	public void setBatchSize(int batchSize) {
+		D.checkValidation(batchSize > 0);
+		this.batchSize = batchSize;
+	}
+
+	public StorageProfile getStorageProfile() {
+		return storageProfile;
+	}
+
+	/**
+	 * Sets the H2 settings the library is opened with. Takes effect right away if the library is open, unless a bulk
+	 * import is in progress, in which case it takes effect when that ends. Defaults to {@link StorageProfile#DEFAULT}.
+	 */
+	public void setStorageProfile(StorageProfile profile) throws Exception {
+		Objects.requireNonNull(profile);
+		if (pool == null) {
+			this.storageProfile = profile;
+			return;
+		}
+		pool.lockWriter();
+		try {
+			this.storageProfile = profile;
+			if (bulkImports == 0) applyProfile(profile);
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * Switches the open library to {@link StorageProfile#BULK_IMPORT} until the matching {@link #endBulkImport()}.
+	 * Calls may be nested; the storage profile is restored when the outermost one ends.
+	 * <p>Without an undo log, a write that fails halfway is not rolled back, and readers may see a batch before it's
+	 * committed. Use it for imports that can be repeated, e.g. with an {@link ImportCheckpoint}.</p>
+	 */
+	public void beginBulkImport() throws Exception {
+		pool.lockWriter();
+		try {
+			if (bulkImports++ == 0) applyProfile(StorageProfile.BULK_IMPORT);
+		} catch (SQLException e) {
+			bulkImports--;
+			throwException("err.db.access", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if there's no bulk import to end
+	 */
+	public void endBulkImport() throws Exception {
+		pool.lockWriter();
+		try {
+			if (bulkImports == 0) throw new IllegalStateException("no bulk import in progress");
+			if (--bulkImports == 0) applyProfile(storageProfile);
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * Must be called with the writer lock held. The database wide settings also apply to read connections; the
+	 * session ones only to the writer, which does all the writing.
+	 */
+	private void applyProfile(StorageProfile profile) throws SQLException {
+		Connection con = pool.writer().getConnection();
+		setOption(con, "set_cache_size", profile.cacheSize);
+		setOption(con, "set_write_delay", profile.writeDelay);
+		setOption(con, "set_default_lock_timeout", profile.lockTimeout);
+		setOption(con, "set_lock_timeout", profile.lockTimeout);
+		setOption(con, "set_undo_log", profile.undoLog ? 1 : 0);
+	}
+
+	private void setOption(Connection con, String key, int value) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(sql.get(key))) {
+			ps.setInt(1, value);
+			ps.execute();
+		}
+	}
+
+	/**
+	 * @return the cache used for image data read by this instance. Its budget may be adjusted at any time.
+	 */
+	public ImageCache getImageCache() {
+		return imageCache;
+	}
+
+	/**
+	 * @return the cache of prepared statements of the connection the calling thread reads through: the writer while it
+	 * holds the writer lock, otherwise the read connection it would be lent next. Null if the storage isn't open.
+	 */
+	public StatementCache getStatementCache() {
+		ConnectionPool p = pool;
+		if (p == null) return null;
+		try {
+			p.acquireReader();
+			try {
+				return p.current();
+			} finally {
+				p.releaseReader();
+			}
+		} catch (SQLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the connections of the open storage, or null if the storage isn't open.
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the statements of the calling thread's connection
+	 */
+	private StatementCache stmts() throws SQLException {
+		return pool.current();
+	}
+
+	/**
+	 * Lends the current thread a read connection, see {@link ConnectionPool#acquireReader()}. Must be paired with a
+	 * call to {@link ConnectionPool#releaseReader()} on the returned pool, which stays the same if the storage is
+	 * reopened meanwhile.
+	 */
+	private ConnectionPool read() throws Exception {
+		ConnectionPool p = pool;
+		try {
+			p.acquireReader();
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		}
+		return p;
+	}
+
 	private void connect(String dbUrl) throws SQLException {
-		con = DriverManager.getConnection(dbUrl, DB_USER, DB_PASS);
-		con.setAutoCommit(true);
+		// MVCC lets readers query snapshots while the writer holds a transaction open
+		pool = new ConnectionPool(dbUrl + ";MVCC=TRUE", DB_USER, DB_PASS, sql, MAX_READERS);
 	}
 
 	private boolean verifyDb() throws SQLException {
-		DatabaseMetaData dbmt = con.getMetaData();
-		ResultSet rs = dbmt.getTables(null, null, "%", new String[]{"TABLE"});
-		if (!rs.isBeforeFirst()) return false;
-		boolean tableFound[] = {false, false, false, false, false};
-		boolean foundAll = false;
-		while (rs.next() && !foundAll) {
-			String tableName = rs.getString("TABLE_NAME");
-			if (tableName.equalsIgnoreCase("item")) tableFound[0] = true;
-			else if (tableName.equalsIgnoreCase("tag")) tableFound[1] = true;
-			else if (tableName.equalsIgnoreCase("tag_group")) tableFound[2] = true;
-			else if (tableName.equalsIgnoreCase("tag_item")) tableFound[3] = true;
-			else if (tableName.equalsIgnoreCase("image")) tableFound[4] = true;
-			foundAll = tableFound[0] && tableFound[1] && tableFound[2] && tableFound[3] && tableFound[4];
-		}
+		ConnectionPool p = pool;
+		p.acquireReader();
+		try {
+			DatabaseMetaData dbmt = stmts().getConnection().getMetaData();
+			ResultSet rs = dbmt.getTables(null, null, "%", new String[]{"TABLE"});
+			if (!rs.isBeforeFirst()) return false;
+			boolean tableFound[] = {false, false, false, false, false};
+			boolean foundAll = false;
+			while (rs.next() && !foundAll) {
+				String tableName = rs.getString("TABLE_NAME");
+				if (tableName.equalsIgnoreCase("item")) tableFound[0] = true;
+				else if (tableName.equalsIgnoreCase("tag")) tableFound[1] = true;
+				else if (tableName.equalsIgnoreCase("tag_group")) tableFound[2] = true;
+				else if (tableName.equalsIgnoreCase("tag_item")) tableFound[3] = true;
+				else if (tableName.equalsIgnoreCase("image")) tableFound[4] = true;
+				foundAll = tableFound[0] && tableFound[1] && tableFound[2] && tableFound[3] && tableFound[4];
+			}
 
-		rs.close();
-		return foundAll;
+			rs.close();
+			return foundAll;
+		} finally {
+			p.releaseReader();
+		}
 	}
 
 	@Override
 	public boolean open(boolean create) throws Exception {
+		boolean recovered = false;
+		if (storageMode != StorageMode.ZIP) {
+			// the library is the database file; H2 wants its path without the extension
+			if (create && Files.exists(Paths.get(this.filePath))) throwException("err.db.open", new IOException("file already exists"));
+			this.h2dbPath = this.filePath.substring(0, this.filePath.length() - DB_FILE_EXT.length() - 1);
+		} else {
+			recovered = openZip(create);
+		}
+
+		String dbUrl = "jdbc:h2:" + this.h2dbPath + ";TRACE_LEVEL_FILE=0" + (create ? "" : ";IFEXISTS=TRUE");
+		try {
+			connect(dbUrl);
+		} catch (SQLException e) {
+			// a recovered directory may be in use by another instance, and is all that's left of a session otherwise
+			if (recovered) this.tempDirPath = "";
+			else deleteTempDir();
+			throwException("err.db.open", e);
+		}
+
+		// Verify and migrate database / Initialize database
+		try {
+			if (create) {
+				pool.lockWriter();
+				try (PreparedStatement ps = pool.writer().getConnection().prepareStatement(sql.get("create_db"))) {
+					ps.execute();
+					setSchemaVersion(SCHEMA_VERSION);
+				} finally {
+					pool.unlockWriter();
+				}
+			} else if (!verifyDb()) {   // opened but not a database of our own
+				close();
+				return false;
+			} else {
+				pool.lockWriter();
+				try {
+					migrate();
+				} finally {
+					pool.unlockWriter();
+				}
+			}
+			if (storageMode == StorageMode.MEMORY) loadIntoMemory(dbUrl);
+			pool.lockWriter();
+			try {
+				bulkImports = 0;
+				applyProfile(storageProfile);
+			} finally {
+				pool.unlockWriter();
+			}
+		} catch (SQLException e) {
+			close();
+			return false;
+		}
+		checkpointedWrites = pool.getWriteCount();
+		return true;
+	}
+
+	/**
+	 * Copies the open library file into a new in-memory database, which replaces it as the database of this instance,
+	 * and starts streaming the changes made to it back to the file.
+	 */
+	private void loadIntoMemory(String fileUrl) throws SQLException, IOException {
+		String script = this.filePath + ".load";
+		try {
+			pool.lockWriter();
+			try (PreparedStatement ps = pool.writer().getConnection().prepareStatement(sql.get("script_db"))) {
+				// keeps the file database open once the pool is closed
+				fileCon = DriverManager.getConnection(fileUrl, DB_USER, DB_PASS);
+				ps.setString(1, script);
+				ps.execute();
+			} finally {
+				pool.unlockWriter();
+			}
+			pool.close();
+
+			String memUrl = "jdbc:h2:mem:tagbook2_" + MEMORY_DBS.incrementAndGet() + ";TRACE_LEVEL_FILE=0";
+			connect(memUrl);
+			pool.lockWriter();
+			try (PreparedStatement ps = pool.writer().getConnection().prepareStatement(sql.get("runscript_db"))) {
+				ps.setString(1, script);
+				ps.execute();
+				ChangeLog.install(pool.writer().getConnection(), sql);
+			} finally {
+				pool.unlockWriter();
+			}
+			// the log reads and trims itself through a connection of its own
+			changeLog = new ChangeLog(DriverManager.getConnection(memUrl + ";MVCC=TRUE", DB_USER, DB_PASS), fileCon, sql);
+		} finally {
+			Files.deleteIfExists(Paths.get(script));
+		}
+	}
+
+	/**
+	 * @return a connection to the library file, with everything committed so far written to it. Must be called with
+	 * the writer lock held.
+	 */
+	private Connection fileConnection() throws Exception {
+		if (storageMode != StorageMode.MEMORY) return pool.writer().getConnection();
+		changeLog.flush();
+		return fileCon;
+	}
+
+	/**
+	 * @return true if the working copy of a session that didn't close was found and will be opened instead of the zip
+	 */
+	private boolean openZip(boolean create) throws Exception {
+		// a session that didn't close leaves its working copy behind. It holds everything up to the last checkpoint
+		// and H2 replays whatever it logged after that. It's only used if it changed after the zip was last saved;
+		// otherwise the zip was saved since, e.g. by another session, and the working copy is stale.
+		Path workDir = getTempDir();
+		if (!create && Files.isDirectory(workDir)) {
+			try {
+				Path db = findDbFile(workDir);
+				Path zip = Paths.get(this.filePath);
+				if (db != null && (!Files.exists(zip) || Files.getLastModifiedTime(db).compareTo(Files.getLastModifiedTime(zip)) > 0)) {
+					this.tempDirPath = workDir.toString();
+					this.h2dbPath = this.tempDirPath + u.NAME_SEPARATOR + DB_FILE_NAME;
+					return true;
+				}
+				io.deleteFile(workDir.toString());
+			} catch (IOException e) {
+				throwException("err.db.open", e);
+			}
+		}
+
 	    /*
 	    Case A: Open
             1. Create temporary hidden directory
             2. Unzip file content inside the aforementioned directory
-            3. Prepare H2 database file path and connect to database
-            4. Verify database
+            3. Prepare H2 database file path
         Case B: Create
             1. Create temporary hidden directory
-            2. Prepare H2 database file path and connect to database
-            3. Initialize database
+            2. Prepare H2 database file path
          */
 
 		// Step 1: Create temporary hidden directory
@@ -125,42 +503,143 @@ public class H2DAO implements IDAO {
 		try {
 			if (!create) {
 				io.unzip(this.filePath, this.tempDirPath, true);
+				// exported libraries carry the name of the database they were exported from
+				Path db = findDbFile(Paths.get(this.tempDirPath));
+				Path expected = Paths.get(this.tempDirPath, DB_FILE_NAME + "." + DB_FILE_EXT);
+				if (db != null && !db.equals(expected)) Files.move(db, expected);
 			}
 		} catch (IOException e) {
 			io.deleteFile(this.tempDirPath);
 			throwException("err.db.open", e);
 		}
 
-		// Step 3.A(2.B): Prepare H2 database file path and connect to database
+		// Step 3.A(2.B): Prepare H2 database file path
 		this.h2dbPath = this.tempDirPath + u.NAME_SEPARATOR + DB_FILE_NAME;
-		String dbUrl = "jdbc:h2:" + this.h2dbPath + ";TRACE_LEVEL_FILE=0" + (create ? "" : ";IFEXISTS=TRUE");
+		return false;
+	}
+
+	/**
+	 * @return the hidden directory a zip library is unzipped to; the same one {@link IOUtils#createHiddenDir(String)}
+	 * creates
+	 */
+	private Path getTempDir() {
+		Path p = Paths.get(this.filePath + TEMP_DIR_SUFFIX);
+		if (p.getFileName().toString().startsWith(".")) return p;
+		return p.getParent().resolve("." + p.getFileName());
+	}
+
+	/**
+	 * Zips the working copy next to the library and then moves it over the library, so a failure halfway leaves
+	 * the previous zip intact.
+	 */
+	private void saveZip() throws IOException {
+		Path target = Paths.get(this.filePath);
+		Path temp = Paths.get(this.filePath + ".tmp");
+		Files.deleteIfExists(temp);
 		try {
-			connect(dbUrl);
-		} catch (SQLException e) {
-			io.deleteFile(this.tempDirPath);
-			throwException("err.db.open", e);
+			io.zipFiles(true, temp.toString(), h2dbPath + "." + DB_FILE_EXT);
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
 		}
+	}
+
+	/**
+	 * Deletes the temporary directory of a zip library, if there is one.
+	 */
+	private void deleteTempDir() throws IOException {
+		if (this.tempDirPath.isEmpty()) return;
+		io.deleteFile(this.tempDirPath);
+		this.tempDirPath = "";
+	}
+
+	/**
+	 * @return the first H2 database file in the specified directory, or null if there's none
+	 */
+	private static Path findDbFile(Path dir) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*." + DB_FILE_EXT)) {
+			for (Path f : files) return f;
+		}
+		return null;
+	}
 
-		// Step 4.A/3.B: Verify database / Initialize database
+	/**
+	 * @return the schema version of the open library; libraries created before versioning are version 1
+	 */
+	int getSchemaVersion() throws SQLException {
+		ConnectionPool p = pool;
+		p.acquireReader();
 		try {
-			if (create) {
-				try (PreparedStatement ps = con.prepareStatement(sql.get("create_db"))) {
-					ps.execute();
-				}
-			} else if (!verifyDb()) {   // opened but not a database of our own
-				close();
-				return false;
+			ResultSet tables = stmts().getConnection().getMetaData().getTables(null, null, "META", new String[]{"TABLE"});
+			boolean versioned = tables.next();
+			tables.close();
+			if (!versioned) return 1;
+
+			try (PreparedStatement ps = stmts().getConnection().prepareStatement(sql.get("select_schema_version"))) {
+				ResultSet rs = ps.executeQuery();
+				return rs.next() ? rs.getInt(1) : 1;
 			}
-		} catch (SQLException e) {
-			close();
-			return false;
+		} finally {
+			p.releaseReader();
+		}
+	}
+
+	private void setSchemaVersion(int version) throws SQLException {
+		try (PreparedStatement ps = pool.writer().getConnection().prepareStatement(sql.get("update_schema_version"))) {
+			ps.setInt(1, version);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Brings the open library up to {@link #SCHEMA_VERSION} by running {@code migrate_db_N} for each version N it
+	 * lacks. Must be called with the writer lock held.
+	 */
+	private void migrate() throws SQLException {
+		Connection con = pool.writer().getConnection();
+		for (int v = getSchemaVersion() + 1; v <= SCHEMA_VERSION; ++v) {
+			try (PreparedStatement ps = con.prepareStatement(sql.get("migrate_db_" + v))) {
+				ps.execute();
+			}
+			setSchemaVersion(v);
+		}
+		// statements prepared against the old schema may use stale plans
+		pool.clear();
+	}
+
+	/**
+	 * @return the query plan H2 chooses for the named statement with the specified parameters
+	 */
+	String explain(String key, Object... params) throws SQLException {
+		return explainForColumn(key, "COLUMN", params);
+	}
+
+	/**
+	 * @see StatementCache#prepareForColumn(String, String)
+	 */
+	String explainForColumn(String key, String column, Object... params) throws SQLException {
+		ConnectionPool p = pool;
+		p.acquireReader();
+		try {
+			String stmnt = sql.get(key).replace("COLUMN", column);
+			try (PreparedStatement ps = stmts().getConnection().prepareStatement("EXPLAIN " + stmnt)) {
+				for (int i = 0; i < params.length; ++i) ps.setObject(i + 1, params[i]);
+				ResultSet rs = ps.executeQuery();
+				rs.next();
+				return rs.getString(1);
+			}
+		} finally {
+			p.releaseReader();
 		}
-		return true;
 	}
 
 	@Override
 	public boolean isOpened() {
-		return con != null;
+		return pool != null;
 	}
 
 	@Override
@@ -169,76 +648,318 @@ public class H2DAO implements IDAO {
 
         /*
         1. Close database connection
-        2. Zip database file (and setting file)
-        3. Delete temporary directory
+        2. Zip database file (and setting file), zip mode only
+        3. Delete temporary directory, zip mode only
          */
 
+		// let a running write finish first
+		Exception unsaved = null;
+		pool.lockWriter();
 		try {
-			con.close();
-		} catch (SQLException e) {
-			// ignored because we might still be able to zip files
+			try {
+				removeUnusedImages(); // keeps them out of the saved file
+			} catch (Exception e) {
+				// ignored because the library can be saved anyway
+			}
+			if (changeLog != null) {
+				try {
+					changeLog.close(); // blocks until the file has every change
+				} catch (Exception e) {
+					unsaved = e;
+				}
+				changeLog = null;
+			}
+			pool.close();
+		} finally {
+			pool.unlockWriter();
 		}
-
-		try {
-			io.zipFiles(true, filePath, h2dbPath + "." + DB_FILE_EXT);
-		} catch (IOException e) {
-			// this exception will be thrown because we don't wanna delete the files if we cannot save them
-			throwException("err.db.open", e);
+		if (fileCon != null) {
+			try {
+				fileCon.close();
+			} catch (SQLException ignored) {
+				// closed anyway
+			}
+			fileCon = null;
+		}
+		if (unsaved != null) {
+			this.h2dbPath = "";
+			pool = null;
+			throwException("err.db.open", unsaved);
 		}
 
-		try {
-			io.deleteFile(this.tempDirPath);
-		} catch (IOException e) {
-			// ignored because we were able to save the files and we need to reinitialize
+		if (storageMode == StorageMode.ZIP) {
+			try {
+				saveZip();
+			} catch (IOException e) {
+				// this exception will be thrown because we don't wanna delete the files if we cannot save them
+				throwException("err.db.open", e);
+			}
+
+			try {
+				deleteTempDir();
+			} catch (IOException e) {
+				// ignored because we were able to save the files and we need to reinitialize
+			}
 		}
 
 		this.tempDirPath = "";
 		this.h2dbPath = "";
-		con = null;
+		pool = null;
+	}
+
+	@Override
+	public void checkpoint() throws Exception {
+		ConnectionPool p = pool;
+		if (p == null) return;
+		p.lockWriter();
+		if (p.isClosed()) { // closed while we waited; close() has saved everything
+			p.unlockWriter();
+			return;
+		}
+		try (PreparedStatement ps = fileConnection().prepareStatement(sql.get("checkpoint_db"))) {
+			ps.execute();
+			checkpointedWrites = p.getWriteCount();
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			p.unlockWriter();
+		}
+	}
+
+	@Override
+	public long getWritesSinceCheckpoint() {
+		ConnectionPool p = pool;
+		return p == null ? 0 : p.getWriteCount() - checkpointedWrites;
 	}
 
 	@Override
 	public boolean isWorking() {
-		return working.get();
+		synchronized (running) {
+			return !running.isEmpty();
+		}
+	}
+
+	/**
+	 * @return the progress of the latest operation still running, or the total of the last one to finish if none is
+	 */
+	@Override
+	public long getProgress() {
+		synchronized (running) {
+			Operation latest = null;
+			for (Operation op : running) latest = op;
+			return latest == null ? lastProgress : latest.progress.get();
+		}
 	}
 
-	private void start() {
-		working.set(true);
+	/**
+	 * Begins an operation on the current thread, or joins the one it's already running. Every call must be paired
+	 * with a call to {@link #finish()}.
+	 */
+	private Operation start() {
+		Operation op = operation.get();
+		if (op == null) {
+			operation.set((op = new Operation(cancels.get())));
+			synchronized (running) {
+				running.add(op);
+			}
+		}
+		op.depth++;
+		return op;
 	}
 
+	/**
+	 * Ends the operation of the current thread once the outermost {@link #start()} is paired.
+	 */
 	private void finish() {
-		working.set(false);
-		cancel.set(false);
+		Operation op = operation.get();
+		if (--op.depth > 0) return;
+		operation.remove();
+		synchronized (running) {
+			running.remove(op);
+			lastProgress = op.progress.get();
+		}
+	}
+
+	/**
+	 * @return true if {@link #cancel()} was called after the operation of the current thread began
+	 */
+	private boolean cancelled() {
+		Operation op = operation.get();
+		return op != null && op.cancelled();
 	}
 
+	/**
+	 * @return the progress counter of the operation of the current thread
+	 */
+	private AtomicLong progress() {
+		return operation.get().progress;
+	}
+
+	/**
+	 * Cancels every operation running at the time of the call, including open cursors. Operations started afterwards
+	 * are not affected.
+	 */
 	@Override
 	public void cancel() {
-		cancel.set(true);
+		cancels.incrementAndGet();
+	}
+
+	/**
+	 * The state of one operation: how far it got and whether it was cancelled. An operation belongs to the thread
+	 * that started it, except for those of cursors, which are never registered as running.
+	 */
+	private final class Operation {
+		final long generation; // the number of cancels before the operation began
+		final AtomicLong progress;
+		int depth; // nested starts on the owning thread
+
+		Operation(long generation) {
+			this.generation = generation;
+			this.progress = new AtomicLong(0);
+		}
+
+		boolean cancelled() {
+			return cancels.get() != generation;
+		}
 	}
 
+	/**
+	 * Writes a {@link BlockBackup} of the library. Writes wait until it's done, but reads go on as usual.
+	 */
 	@Override
 	public void backup(String path) throws Exception {
 		Objects.requireNonNull(path);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("backup_db"))) {
+		// holding the writer keeps the tables from changing between chunks; readers have connections of their own
+		pool.lockWriter();
+		try (OutputStream os = Files.newOutputStream(Paths.get(path))) {
+			Connection con = pool.writer().getConnection();
+			new BlockBackup(BK_PASS).write(con, sql, listTables(con), SCHEMA_VERSION, os);
+		} catch (SQLException | IOException e) {
+			Files.deleteIfExists(Paths.get(path));
+			throwException("err.backup", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * Writes a backup in the format used before {@link BlockBackup}: an encrypted, compressed SQL script. It can still
+	 * be restored with {@link #restore(String)}.
+	 */
+	void backupScript(String path) throws Exception {
+		Objects.requireNonNull(path);
+		// an in-memory database has the change log in it, so its file is backed up instead
+		boolean memory = storageMode == StorageMode.MEMORY;
+		ConnectionPool p = read();
+		if (memory) pool.lockWriter();
+		try (PreparedStatement ps = (memory ? fileConnection() : stmts().getConnection()).prepareStatement(sql.get("backup_db"))) {
 			ps.setString(1, path);
 			ps.setString(2, BK_PASS);
 			ps.execute();
 		} catch (SQLException e) {
 			throwException("err.backup", e);
+		} finally {
+			p.releaseReader();
+			if (memory) pool.unlockWriter();
 		}
 	}
 
+	/**
+	 * Restores a backup written by {@link #backup(String)}, or by {@link #backupScript(String)} in older versions.
+	 */
 	@Override
 	public void restore(String path) throws Exception {
 		Objects.requireNonNull(path);
-		try (PreparedStatement psClear = con.prepareStatement(sql.get("clear_db"));
-		     PreparedStatement psRestore = con.prepareStatement(sql.get("restore_db"))) {
-			psRestore.setString(1, path);
-			psRestore.setString(2, BK_PASS);
-			psClear.execute();
-			psRestore.execute();
+		if (storageMode == StorageMode.MEMORY) {
+			// the change log can't replay a replaced schema, so the file is restored and loaded again
+			close();
+			H2DAO file = new H2DAO(filePath, StorageMode.DIRECT);
+			try {
+				if (file.open(false)) file.restore(path);
+			} finally {
+				file.close();
+			}
+			if (!open(false)) throwException("err.db.open", null);
+			return;
+		}
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			if (BlockBackup.isBlockBackup(path)) {
+				pool.clear();
+				try (InputStream is = Files.newInputStream(Paths.get(path))) {
+					int version = new BlockBackup(BK_PASS).read(con, sql, listTables(con), SCHEMA_VERSION, is);
+					setSchemaVersion(version);
+					migrate(); // the backup may be older than this schema
+				}
+			} else {
+				try (PreparedStatement psClear = con.prepareStatement(sql.get("clear_db"));
+				     PreparedStatement psRestore = con.prepareStatement(sql.get("restore_db"))) {
+					psRestore.setString(1, path);
+					psRestore.setString(2, BK_PASS);
+					pool.clear();
+					psClear.execute();
+					psRestore.execute();
+					migrate(); // the backup may be older than this schema
+				}
+			}
+			imageCache.clear();
+		} catch (SQLException | IOException e) {
+			throwException("err.backup", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * @return the tables of the library, without those that only exist in memory
+	 */
+	private List<String> listTables(Connection con) throws SQLException {
+		List<String> tables = new ArrayList<>();
+		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tables"))) {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) tables.add(rs.getString(1));
+		}
+		return tables;
+	}
+
+	@Override
+	public void exportLibrary(String path) throws Exception {
+		Objects.requireNonNull(path);
+		// holding the writer keeps the copy from catching a batch halfway
+		pool.lockWriter();
+		try (PreparedStatement ps = fileConnection().prepareStatement(sql.get("export_db"))) {
+			ps.setString(1, io.getAbsNormPath(path));
+			ps.execute();
 		} catch (SQLException e) {
 			throwException("err.backup", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * Unpacks a zip library, e.g. one written by {@link #exportLibrary(String)}, into a library file that can be
+	 * opened in {@link StorageMode#DIRECT} mode.
+	 *
+	 * @param zipPath     the zip library
+	 * @param libraryPath the library file to create; must end with {@code .h2.db} and must not exist
+	 * @throws IllegalArgumentException if {@code libraryPath} doesn't end with {@code .h2.db}
+	 * @throws IOException              if the library file exists, or the zip has no database in it
+	 */
+	public static void unpackLibrary(String zipPath, String libraryPath) throws IOException {
+		D.checkValidation(libraryPath.endsWith("." + DB_FILE_EXT));
+		IOUtils io = IOUtils.getInstance();
+		Path target = Paths.get(io.getAbsNormPath(libraryPath));
+		if (Files.exists(target)) throw new IOException("file already exists");
+		String tempDir = io.createHiddenDir(target + TEMP_DIR_SUFFIX);
+		try {
+			io.unzip(zipPath, tempDir, true);
+			Path db = findDbFile(Paths.get(tempDir));
+			if (db == null) throw new IOException("no library in " + zipPath);
+			Files.move(db, target);
+		} finally {
+			io.deleteFile(tempDir);
 		}
 	}
 
@@ -247,6 +968,41 @@ public class H2DAO implements IDAO {
 		return 0; // TODO
 	}
 
+	@Override
+	public ImportCheckpoint getImportCheckpoint(String source) throws Exception {
+		Objects.requireNonNull(source);
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_import_checkpoint");
+			ps.setString(1, source);
+			ResultSet rs = ps.executeQuery();
+			ImportCheckpoint checkpoint = null;
+			if (rs.next()) checkpoint = new ImportCheckpoint(source, rs.getString("fingerprint"), rs.getLong("position"));
+			rs.close();
+			return checkpoint;
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+			return null; // will not get here
+		} finally {
+			p.releaseReader();
+		}
+	}
+
+	@Override
+	public void removeImportCheckpoint(String source) throws Exception {
+		Objects.requireNonNull(source);
+		pool.lockWriter();
+		try {
+			PreparedStatement ps = stmts().prepare("remove_import_checkpoint");
+			ps.setString(1, source);
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
 	@Override
 	public long exportItems(String path) throws Exception {
 		return 0;  // TODO
@@ -255,7 +1011,9 @@ public class H2DAO implements IDAO {
 	@Override
 	public boolean itemExist(String ref) throws Exception {
 		Objects.requireNonNull(ref);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_item_by_ref"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_item_by_ref");
 			ps.setString(1, ref);
 			ResultSet rs = ps.executeQuery();
 			boolean found = rs.isBeforeFirst();
@@ -263,6 +1021,8 @@ public class H2DAO implements IDAO {
 			return found;
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 		return false;
 	}
@@ -271,24 +1031,31 @@ public class H2DAO implements IDAO {
 	public boolean itemExist(String ref, Item item) throws Exception {
 		Objects.requireNonNull(ref);
 		Objects.requireNonNull(item);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_item_by_ref"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_item_by_ref");
 			ps.setString(1, ref);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) return false;
 			rs.next();
-			Item i = fetchItem(rs);
+			Item i = fetchItem(rs, true);
+			item.markClean();
 			i.copyTo(item);
 			rs.close();
 			return true;
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return false; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	public boolean tagExist(String name) throws Exception {
 		Objects.requireNonNull(name);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tag_by_name"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tag_by_name");
 			ps.setString(1, name);
 			ResultSet rs = ps.executeQuery();
 			boolean found = rs.isBeforeFirst();
@@ -297,13 +1064,17 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return false;
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	public boolean tagExist(String name, Tag tag) throws Exception {
 		Objects.requireNonNull(name);
 		Objects.requireNonNull(tag);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tag_by_name"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tag_by_name");
 			ps.setString(1, name);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) return false;
@@ -315,71 +1086,219 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return false;
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public Item getItem(long id) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_item_by_id"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_item_by_id");
 			ps.setLong(1, id);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) return new Item(null);
 			rs.next();
-			Item i = fetchItem(rs);
+			Item i = fetchItem(rs, true);
 			rs.close();
 			return i;
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public void loadAllItems(Collection<Item> items) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_all_items"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_all_items");
 			ResultSet rs = ps.executeQuery();
-			fetchItems(rs, items);
+			fetchItems(rs, items, true);
 			rs.close();
 		} catch (SQLException e) {
-			finish();
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 	}
 
+	@Deprecated
 	@Override
 	public void loadAllItems(Collection<Item> items, long limit, long offset) throws Exception {
 		D.checkPositive(limit, offset);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_all_items_2"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_all_items_2");
 			ps.setLong(1, limit);
 			ps.setLong(2, offset);
 			ResultSet rs = ps.executeQuery();
 			fetchItems(rs, items);
 			rs.close();
 		} catch (SQLException e) {
-			finish();
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 	}
 
+	@Override
+	public String loadItemsPage(Collection<Item> items, SortKey sortKey, long limit, String token) throws Exception {
+		Objects.requireNonNull(items);
+		D.checkValidation(limit > 0);
+		List<Item> page = new ArrayList<>((int) Math.min(limit, ID_CHUNK));
+		boolean cut = false;
+		ConnectionPool p = read();
+		start();
+		try {
+			ResultSet rs = preparePage("items", sortKey, limit, token).executeQuery();
+			fetchItems(rs, page);
+			rs.close();
+			// a cancelled page may be short without being the last one
+			cut = cancelled();
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			finish();
+			p.releaseReader();
+		}
+		items.addAll(page);
+		if (page.isEmpty() || (page.size() < limit && !cut)) return null;
+
+		Item last = page.get(page.size() - 1);
+		Object value;
+		switch (sortKey) {
+			case name:
+				value = last.getName();
+				break;
+			case dateadd:
+				value = last.getDateadd();
+				break;
+			case datemod:
+				value = last.getDatemod();
+				break;
+			default:
+				value = null;
+		}
+		return new PageToken(sortKey, last.getId(), value).toString();
+	}
+
 	@Override
 	public void loadItemsById(Collection<Item> items, long... ids) throws Exception {
-		// prepare ids list
-		String stmnt = sql.get("select_items_by_id").replace("CSV", longArr2CsvString(ids));
+		Objects.requireNonNull(items);
+		Objects.requireNonNull(ids);
+		ids = distinct(ids);
 
-		if (cancel.get()) return;
+		ConnectionPool p = read();
+		// one operation for all chunks, so a cancel during one chunk stops the rest
+		start();
+		try {
+			PreparedStatement ps = stmts().prepare("select_items_by_id");
+			for (int from = 0; from < ids.length && !cancelled(); from += ID_CHUNK) {
+				ps.setObject(1, idList(ids, from));
+				fetchItems(ps.executeQuery(), items);
+			}
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			finish();
+			p.releaseReader();
+		}
+	}
 
-		try (Statement s = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			ResultSet rs = s.executeQuery(stmnt);
-			fetchItems(rs, items);
-			rs.close();
+	@Override
+	public Cursor<Item> openItemCursor(int fetchSize) throws Exception {
+		return new BlockCursor<Item>(fetchSize) {
+			@Override
+			long readBlock(long afterId, int limit, Collection<Item> block) throws SQLException {
+				PreparedStatement ps = stmts().prepare("select_items_after");
+				ps.setLong(1, afterId);
+				ps.setLong(2, limit);
+				ps.setFetchSize(limit);
+				ResultSet rs = ps.executeQuery();
+				Map<Long, Item> fetched = new LinkedHashMap<>(limit);
+				long lastId = -1;
+				while (rs.next()) {
+					Item i = fetchItem(rs, false);
+					fetched.put((lastId = i.getId()), i);
+				}
+				rs.close();
+				hydrateTags(fetched, false);
+				block.addAll(fetched.values());
+				return lastId;
+			}
+		};
+	}
+
+	@Override
+	public void loadItemImages(Collection<Item> items) throws Exception {
+		Objects.requireNonNull(items);
+		Map<Long, List<Image>> pending = new LinkedHashMap<>();
+		for (Item i : items) {
+			Image img = i.getImage();
+			if (img == null || img.isLoaded()) continue;
+			byte[] cached = imageCache.get(img.getId());
+			if (cached != null) {
+				img.setData(cached);
+				continue;
+			}
+			List<Image> handles = pending.get(img.getId());
+			if (handles == null) pending.put(img.getId(), (handles = new ArrayList<>(1)));
+			handles.add(img);
+		}
+		if (pending.isEmpty()) return;
+
+		long[] ids = new long[pending.size()];
+		int n = 0;
+		for (long id : pending.keySet()) ids[n++] = id;
+		ConnectionPool p = read();
+		start();
+		try {
+			PreparedStatement ps = stmts().prepare("select_images_by_id");
+			for (int from = 0; from < ids.length && !cancelled(); from += ID_CHUNK) {
+				ps.setObject(1, idList(ids, from));
+				ResultSet rs = ps.executeQuery();
+				while (rs.next()) {
+					byte[] data = rs.getBytes("data");
+					imageCache.put(rs.getLong("id"), data);
+					for (Image img : pending.get(rs.getLong("id"))) {
+						img.setData(data);
+					}
+				}
+				rs.close();
+			}
 		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
 			finish();
+			p.releaseReader();
+		}
+	}
+
+	private byte[] loadImageData(long id) throws Exception {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_image_by_id");
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+			byte[] data = rs.next() ? rs.getBytes("data") : null;
+			rs.close();
+			return data;
+		} catch (SQLException e) {
 			throwException("err.db.access", e);
+			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	public void getItemTags(long id, Collection<Tag> tags) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_item_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_item_tags");
 			ps.setLong(1, id);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {
@@ -392,12 +1311,16 @@ public class H2DAO implements IDAO {
 			rs.close();
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public int getItemTagCount(long id) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_item_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_item_tags");
 			ps.setLong(1, id);
 			ResultSet rs = ps.executeQuery();
 			int count =  (int) fetchCount(rs);
@@ -406,64 +1329,53 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
+	/**
+	 * Updates write only the fields that changed since the item was loaded or last stored, and nothing at all if
+	 * none did.
+	 */
 	@Override
 	public boolean addUpdateItem(Item item, boolean update) throws Exception {
-		// insert image if exists
-		Image img;
-		if ((img = item.getImage()) != null && !img.isNull()) {
-			try (PreparedStatement ps = con.prepareStatement(sql.get("insert_image"),  ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,PreparedStatement.RETURN_GENERATED_KEYS)) {
-				ps.setBinaryStream(1, new ByteArrayInputStream(img.getData()));
-				ps.setLong(2, img.getId());
-				ps.executeUpdate();
-
-				ResultSet rs = ps.getGeneratedKeys();
-				if (rs.isBeforeFirst()) {
-					rs.next();
-					item.getImage().setId(rs.getLong(1));
+		pool.lockWriter();
+		try {
+			if (update && !item.isDirty()) return true;
+
+			// insert image if exists
+			if (!update || item.isDirty(Field.image)) {
+				try {
+					insertImage(item);
+				} catch (SQLException e) {
+					throwException("err.db.access", e);
 				}
-				rs.close();
-			} catch (SQLException e) {
-				throwException("err.db.access", e);
 			}
-		}
-
-		// insert item
-		try (PreparedStatement ps = con.prepareStatement(update ? sql.get("update_item") : sql.get("insert_item"),  ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,PreparedStatement.RETURN_GENERATED_KEYS)) {
-			ps.setString(1, item.getName());
-			ps.setString(2, item.getInfo());
-			if (item.getRef() == null) ps.setNull(3, Types.VARCHAR);
-			else ps.setString(3, item.getRef());
-			ps.setBoolean(4, item.isPrivy());
-			ps.setString(5, item.getUsername());
-			ps.setString(6, item.getPassword());
-			ps.setTimestamp(7, item.getDateadd());
-			ps.setTimestamp(8, item.getDatemod());
-			if (item.getImage() != null) ps.setLong(9, item.getImage().getId());
-			else ps.setNull(9, Types.BIGINT);
 
-			if (update) {
-				ps.setLong(10, item.getId());
-				if (item.getRef() == null) ps.setNull(11, Types.VARCHAR);
-				else ps.setString(11, item.getRef());
-				ps.setLong(12, item.getId());
-			}
+			// insert item
+			try {
+				if (update) {
+					if (!updateItemColumns(item)) {
+						// update rejected (updated ref. already exists)
+						return false;
+					}
+					if (item.isDirty(Field.tags)) retagItem(item);
+					item.markClean();
+					return true;
+				}
 
-			int ar = ps.executeUpdate(); // affected rows
+				PreparedStatement ps = stmts().prepare("insert_item", true);
+				bindItem(ps, 1, item);
 
-			if (update) {
-				if (ar == 0) {
-					// update rejected (updated ref. already exists)
-					return false;
-				} else {
-					PreparedStatement ps2 = con.prepareStatement(sql.get("remove_item_tags"));
-					ps2.setLong(1, item.getId());
-					ps2.execute();
-					ps2.close();
+				int ar; // affected rows
+				try {
+					ar = ps.executeUpdate();
+				} catch (SQLException e) {
+					if (!isDuplicateKey(e)) throw e;
+					ar = 0;
 				}
-			} else {
+
 				if (ar == 0) {
 					// nothing was inserted (already exists)
 					return false;
@@ -473,82 +1385,485 @@ public class H2DAO implements IDAO {
 					item.setId(rs.getLong(1));
 					rs.close();
 				}
-			}
 
-			// insert tags
-			tagItems(new long[]{item.getId()}, item.getTags().toArray(new Tag[item.getTags().size()]));
-			return true;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
+				// insert tags
+				tagItems(new long[]{item.getId()}, item.getTags().toArray(new Tag[item.getTags().size()]));
+				item.markClean();
+				return true;
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+				return false; // will not get here
+			}
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
+	/**
+	 * Inserts new items in JDBC batches of {@link #getBatchSize()} items and commits after each batch, so an
+	 * interrupted import keeps the batches written so far. Updates are still written one item at a time, all in one
+	 * transaction. A failure rolls back the transaction it occurs in.
+	 */
 	@Override
 	public long addUpdateItems(Collection<Item> items, boolean update) throws Exception {
-		start();
-		Iterator<Item> itr = items.iterator();
-		boolean commitState = con.getAutoCommit();
-		con.setAutoCommit(false);
-		int i = 0;
-		for (; i < items.size(); ++i) {
-			addUpdateItem(itr.next(), update);
-			if (cancel.get()) break;
-		}
-		con.commit();
-		con.setAutoCommit(commitState);
-		finish();
-		return i;
+		Objects.requireNonNull(items);
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			boolean commitState = con.getAutoCommit();
+			con.setAutoCommit(false);
+			long i = 0;
+			start();
+			try {
+				i = update ? updateItems(items) : insertItems(items, true);
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				throwException("err.db.access", e);
+			} catch (Exception e) {
+				// already wrapped by addUpdateItem and the like; restoring autocommit would commit what's written
+				con.rollback();
+				throw e;
+			} finally {
+				finish();
+				con.setAutoCommit(commitState);
+			}
+			return i;
+		} finally {
+			pool.unlockWriter();
+		}
 	}
 
 	@Override
-	public boolean addUpdateTag(Tag tag, boolean update) throws Exception {
-		if (tag.isNull()) return false;
-
-		// insert tag group if exists
-		TagGroup tg;
-		if ((tg = tag.getGroup()) != null && !tg.isNull()) {
-			try (PreparedStatement ps = con.prepareStatement(sql.get("insert_tag_group"),  ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,PreparedStatement.RETURN_GENERATED_KEYS)) {
-				ps.setString(1, tg.getName());
-				ps.executeUpdate();
-
-				ResultSet rs = ps.getGeneratedKeys();
-				if (rs.isBeforeFirst()) {
-					rs.next();
-					tag.getGroup().setId(rs.getLong(1));
+	public boolean addUpdateItems(Collection<Item> updates, Collection<Item> inserts, ImportCheckpoint checkpoint) throws Exception {
+		Objects.requireNonNull(updates);
+		Objects.requireNonNull(inserts);
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			boolean commitState = con.getAutoCommit();
+			con.setAutoCommit(false);
+			boolean stored = false;
+			start();
+			try {
+				stored = updateItems(updates) == updates.size() && insertItems(inserts, false) == inserts.size();
+				if (stored) {
+					if (checkpoint != null) saveCheckpoint(checkpoint);
+					con.commit();
+				} else {
+					con.rollback();
 				}
-				rs.close();
 			} catch (SQLException e) {
+				con.rollback();
 				throwException("err.db.access", e);
+			} catch (Exception e) {
+				con.rollback();
+				throw e;
+			} finally {
+				finish();
+				con.setAutoCommit(commitState);
+			}
+			return stored;
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	/**
+	 * Updates the specified items one at a time in the current transaction.
+	 *
+	 * @return the number of items processed, in iteration order
+	 */
+	private long updateItems(Collection<Item> items) throws Exception {
+		long i = 0;
+		for (Item item : items) {
+			addUpdateItem(item, true);
+			++i;
+			if (cancelled()) break;
+		}
+		return i;
+	}
+
+	/**
+	 * Inserts the specified items in JDBC batches of {@link #getBatchSize()} items.
+	 *
+	 * @param commitBatches whether to commit after each batch but the last, which is left to the caller
+	 * @return the number of items processed, in iteration order
+	 */
+	private long insertItems(Collection<Item> items, boolean commitBatches) throws Exception {
+		if (items.isEmpty()) return 0;
+		Iterator<Item> itr = items.iterator();
+		Map<String, Long> tagIds = new HashMap<>();
+		// nothing else inserts items while the writer lock is held
+		long nextId = fetchCount(stmts().prepare("select_last_item_id").executeQuery()) + 1;
+		List<Item> batch = new ArrayList<>(Math.min(batchSize, items.size()));
+		long i = 0;
+		while (itr.hasNext() && !cancelled()) {
+			batch.add(itr.next());
+			if (batch.size() < batchSize && itr.hasNext()) continue;
+			nextId = insertItems(batch, nextId, tagIds);
+			i += batch.size();
+			batch.clear();
+			if (commitBatches && itr.hasNext()) pool.writer().getConnection().commit();
+		}
+		return i;
+	}
+
+	private void saveCheckpoint(ImportCheckpoint checkpoint) throws SQLException {
+		PreparedStatement ps = stmts().prepare("merge_import_checkpoint");
+		ps.setString(1, checkpoint.getSource());
+		ps.setString(2, checkpoint.getFingerprint());
+		ps.setLong(3, checkpoint.getPosition());
+		ps.executeUpdate();
+	}
+
+	/**
+	 * Writes a batch of new items with three JDBC batches: new tags, items and tag mappings. Items whose ref
+	 * already exists are skipped and keep their id.
+	 *
+	 * @param firstId    the id of the first item; a batch only reports the key of its last row, so ids are allocated
+	 *                   by the caller
+	 * @param tagIds     the ids of the tags already resolved by the current call mapped by name; updated by this
+	 *                   method
+	 * @return the id after the last one allocated to this batch
+	 */
+	private long insertItems(List<Item> batch, long firstId, Map<String, Long> tagIds) throws Exception {
+		for (Item item : batch) insertImage(item);
+
+		List<Tag> tags = new ArrayList<>();
+		for (Item item : batch) tags.addAll(item.getTags());
+		resolveTagIds(tags, tagIds);
+
+		PreparedStatement ps = stmts().prepare("insert_item_with_id");
+		for (int i = 0; i < batch.size(); ++i) {
+			Item item = batch.get(i);
+			ps.setLong(1, firstId + i);
+			bindItem(ps, 2, item);
+			ps.addBatch();
+		}
+		int[] inserted;
+		try {
+			inserted = ps.executeBatch();
+		} catch (BatchUpdateException e) {
+			// the other rows of the batch are still written
+			for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+				if (!isDuplicateKey(cause)) throw e;
+			}
+			inserted = e.getUpdateCounts();
+		}
+
+		PreparedStatement psMap = stmts().prepare("insert_tag_item");
+		for (int i = 0; i < batch.size(); ++i) {
+			if (inserted[i] <= 0) continue; // ref already exists
+			Item item = batch.get(i);
+			item.setId(firstId + i);
+			item.markClean();
+			for (Tag t : item.getTags()) {
+				Long tagId = tagIds.get(t.getName());
+				if (tagId == null) continue;
+				psMap.setLong(1, item.getId());
+				psMap.setLong(2, tagId);
+				psMap.addBatch();
+			}
+		}
+		psMap.executeBatch();
+		return firstId + batch.size();
+	}
+
+	/**
+	 * Writes the dirty columns of the specified item.
+	 *
+	 * @return false if the update was rejected because another item has the updated ref
+	 */
+	private boolean updateItemColumns(Item item) throws SQLException {
+		List<Field> fields = new ArrayList<>();
+		StringBuilder assignments = new StringBuilder();
+		for (Field f : item.getDirtyFields()) {
+			String assignment = ITEM_ASSIGNMENTS.get(f);
+			if (assignment == null) continue; // not a column
+			if (!fields.isEmpty()) assignments.append(", ");
+			assignments.append(assignment);
+			fields.add(f);
+		}
+		if (fields.isEmpty()) return true;
+
+		PreparedStatement ps = stmts().prepareForAssignments("update_item_columns", assignments.toString());
+		int i = 1;
+		for (Field f : fields) {
+			switch (f) {
+				case name:
+					ps.setString(i++, item.getName());
+					break;
+				case info:
+					ps.setString(i++, item.getInfo());
+					break;
+				case ref:
+					if (item.getRef() == null) ps.setNull(i++, Types.VARCHAR);
+					else ps.setString(i++, item.getRef());
+					break;
+				case privy:
+					ps.setBoolean(i++, item.isPrivy());
+					break;
+				case username:
+					ps.setString(i++, item.getUsername());
+					break;
+				case password:
+					ps.setString(i++, item.getPassword());
+					break;
+				case dateadd:
+					ps.setTimestamp(i++, item.getDateadd());
+					break;
+				case datemod:
+					ps.setTimestamp(i++, item.getDatemod());
+					break;
+				case image:
+					if (item.getImage() != null) ps.setLong(i++, item.getImage().getId());
+					else ps.setNull(i++, Types.BIGINT);
+					break;
+			}
+		}
+		ps.setLong(i++, item.getId());
+		if (item.getRef() == null) ps.setNull(i++, Types.VARCHAR);
+		else ps.setString(i++, item.getRef());
+		ps.setLong(i, item.getId());
+		return ps.executeUpdate() > 0;
+	}
+
+	/**
+	 * Brings the stored tags of the specified item in line with its tags, touching only the tag links that changed:
+	 * links to tags the item no longer has are deleted and links to its new tags are inserted.
+	 */
+	private void retagItem(Item item) throws Exception {
+		Map<String, Long> stored = new HashMap<>();
+		PreparedStatement ps = stmts().prepare("select_item_tag_ids");
+		ps.setLong(1, item.getId());
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			stored.put(rs.getString("name"), rs.getLong("id"));
+		}
+		rs.close();
+
+		List<Tag> added = new ArrayList<>();
+		Set<String> kept = new HashSet<>();
+		for (Tag t : item.getTags()) {
+			if (t.isNull()) continue;
+			if (stored.containsKey(t.getName())) kept.add(t.getName());
+			else added.add(t);
+		}
+
+		if (kept.size() < stored.size()) {
+			PreparedStatement psRemove = stmts().prepare("remove_item_tag");
+			for (Map.Entry<String, Long> entry : stored.entrySet()) {
+				if (kept.contains(entry.getKey())) continue;
+				psRemove.setLong(1, item.getId());
+				psRemove.setLong(2, entry.getValue());
+				psRemove.addBatch();
+			}
+			psRemove.executeBatch();
+		}
+
+		if (!added.isEmpty()) {
+			Map<String, Long> tagIds = new HashMap<>(added.size() * 2);
+			resolveTagIds(added, tagIds);
+			PreparedStatement psMap = stmts().prepare("insert_tag_item");
+			for (Long tagId : new HashSet<>(tagIds.values())) {
+				psMap.setLong(1, item.getId());
+				psMap.setLong(2, tagId);
+				psMap.addBatch();
+			}
+			psMap.executeBatch();
+		}
+	}
+
+	/**
+	 * Stores the specified tags that don't exist yet, once per distinct name, and maps the names to the tag ids.
+	 *
+	 * @param tagIds tag ids mapped by name; names already mapped are skipped
+	 */
+	private void resolveTagIds(Collection<Tag> tags, Map<String, Long> tagIds) throws Exception {
+		Map<String, Tag> pending = new LinkedHashMap<>();
+		for (Tag t : tags) {
+			if (t.isNull() || tagIds.containsKey(t.getName()) || pending.containsKey(t.getName())) continue;
+			pending.put(t.getName(), t);
+		}
+		if (pending.isEmpty()) return;
+
+		// look up the stored ones first, so only new tags are inserted
+		String[] names = pending.keySet().toArray(new String[pending.size()]);
+		PreparedStatement ps = stmts().prepare("select_tag_ids_by_name");
+		for (int from = 0; from < names.length; from += ID_CHUNK) {
+			ps.setObject(1, Arrays.copyOfRange(names, from, Math.min(names.length, from + ID_CHUNK)));
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				tagIds.put(rs.getString("name"), rs.getLong("id"));
+			}
+			rs.close();
+		}
+
+		for (Tag t : pending.values()) {
+			if (!tagIds.containsKey(t.getName()) && addUpdateTag(t, false)) tagIds.put(t.getName(), t.getId());
+		}
+	}
+
+	/**
+	 * Stores the image of the specified item, if any, and updates the image id. Images are stored once per content:
+	 * an item whose image bytes are already stored references the existing row. An image that was never loaded is
+	 * already stored.
+	 */
+	private void insertImage(Item item) throws SQLException {
+		Image img = item.getImage();
+		if (img == null || !img.isLoaded() || img.isNull()) return;
+		byte[] data = img.getData();
+		String hash = u.sha256Hex(data);
+
+		PreparedStatement ps = stmts().prepare("select_image_id_by_hash");
+		ps.setString(1, hash);
+		ResultSet rs = ps.executeQuery();
+		if (rs.next()) {
+			img.setId(rs.getLong(1));
+			rs.close();
+			return;
+		}
+		rs.close();
+
+		ps = stmts().prepare("insert_image", true);
+		ps.setBinaryStream(1, new ByteArrayInputStream(data));
+		ps.setString(2, hash);
+		ps.executeUpdate();
+
+		rs = ps.getGeneratedKeys();
+		rs.next();
+		img.setId(rs.getLong(1));
+		rs.close();
+	}
+
+	/**
+	 * Writes the dirty columns of the specified tag.
+	 *
+	 * @return false if the update was rejected because another tag has the updated name
+	 */
+	private boolean updateTagColumns(Tag tag) throws SQLException {
+		List<Field> fields = new ArrayList<>();
+		StringBuilder assignments = new StringBuilder();
+		for (Field f : tag.getDirtyFields()) {
+			String assignment = TAG_ASSIGNMENTS.get(f);
+			if (assignment == null) continue; // not a column
+			if (!fields.isEmpty()) assignments.append(", ");
+			assignments.append(assignment);
+			fields.add(f);
+		}
+		if (fields.isEmpty()) return true;
+
+		PreparedStatement ps = stmts().prepareForAssignments("update_tag_columns", assignments.toString());
+		int i = 1;
+		for (Field f : fields) {
+			switch (f) {
+				case name:
+					ps.setString(i++, tag.getName());
+					break;
+				case color:
+					ps.setString(i++, tag.getColor());
+					break;
+				case dateadd:
+					ps.setTimestamp(i++, tag.getDateadd());
+					break;
+				case datemod:
+					ps.setTimestamp(i++, tag.getDatemod());
+					break;
+				case parent:
+					if (tag.getParentId() == null) ps.setNull(i++, Types.BIGINT);
+					else ps.setLong(i++, tag.getParentId());
+					break;
+				case group:
+					if (tag.getGroup() == null) ps.setNull(i++, Types.BIGINT);
+					else ps.setLong(i++, tag.getGroup().getId());
+					break;
 			}
 		}
+		ps.setLong(i++, tag.getId());
+		ps.setString(i++, tag.getName());
+		ps.setLong(i, tag.getId());
+		return ps.executeUpdate() > 0;
+	}
 
-		// insert tag
-		try (PreparedStatement psTag = con.prepareStatement(update ? sql.get("update_tag") : sql.get("insert_tag"),  ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,PreparedStatement.RETURN_GENERATED_KEYS)) {
-			psTag.setString(1, tag.getName());
-			psTag.setString(2, tag.getColor());
-			psTag.setTimestamp(3, tag.getDateadd());
-			psTag.setTimestamp(4, tag.getDatemod());
-			if (tag.getParentId() == null) psTag.setNull(5, Types.BIGINT);
-			else psTag.setLong(5, tag.getParentId());
-			if (tag.getGroup() == null) psTag.setNull(6, Types.BIGINT);
-			else psTag.setLong(6, tag.getGroup().getId());
+	/**
+	 * Binds the nine item columns shared by the insert and update statements.
+	 *
+	 * @param first the index of the first parameter
+	 */
+	private void bindItem(PreparedStatement ps, int first, Item item) throws SQLException {
+		ps.setString(first, item.getName());
+		ps.setString(first + 1, item.getInfo());
+		if (item.getRef() == null) ps.setNull(first + 2, Types.VARCHAR);
+		else ps.setString(first + 2, item.getRef());
+		ps.setBoolean(first + 3, item.isPrivy());
+		ps.setString(first + 4, item.getUsername());
+		ps.setString(first + 5, item.getPassword());
+		ps.setTimestamp(first + 6, item.getDateadd());
+		ps.setTimestamp(first + 7, item.getDatemod());
+		if (item.getImage() != null) ps.setLong(first + 8, item.getImage().getId());
+		else ps.setNull(first + 8, Types.BIGINT);
+	}
 
-			if (update) {
-				// update
-				psTag.setLong(7, tag.getId());
-				psTag.setString(8, tag.getName());
-				psTag.setLong(9, tag.getId());
+	/**
+	 * Updates write only the fields that changed since the tag was loaded or last stored, and nothing at all if
+	 * none did.
+	 */
+	@Override
+	public boolean addUpdateTag(Tag tag, boolean update) throws Exception {
+		pool.lockWriter();
+		try {
+			if (tag.isNull()) return false;
+			if (update && !tag.isDirty()) return true;
+
+			// insert tag group if exists
+			TagGroup tg;
+			if ((!update || tag.isDirty(Field.group)) && (tg = tag.getGroup()) != null && !tg.isNull()) {
+				try {
+					PreparedStatement ps = stmts().prepare("merge_tag_group");
+					ps.setString(1, tg.getName());
+					ps.executeUpdate();
+
+					// MERGE reports no key when the group already exists
+					ps = stmts().prepare("select_tag_group_id_by_name");
+					ps.setString(1, tg.getName());
+					ResultSet rs = ps.executeQuery();
+					if (rs.next()) tg.setId(rs.getLong(1));
+					rs.close();
+				} catch (SQLException e) {
+					throwException("err.db.access", e);
+				}
 			}
 
-			int ar = psTag.executeUpdate(); // affected rows
+			// insert tag
+			try {
+				if (update) {
+					if (!updateTagColumns(tag)) {
+						// update rejected (updated name already exists)
+						return false;
+					}
+					tag.markClean();
+					return true;
+				}
 
-			if (update) {
-				if (ar == 0) {
-					// update rejected (updated name already exists)
-					return false;
+				PreparedStatement psTag = stmts().prepare("insert_tag", true);
+				psTag.setString(1, tag.getName());
+				psTag.setString(2, tag.getColor());
+				psTag.setTimestamp(3, tag.getDateadd());
+				psTag.setTimestamp(4, tag.getDatemod());
+				if (tag.getParentId() == null) psTag.setNull(5, Types.BIGINT);
+				else psTag.setLong(5, tag.getParentId());
+				if (tag.getGroup() == null) psTag.setNull(6, Types.BIGINT);
+				else psTag.setLong(6, tag.getGroup().getId());
+
+				int ar; // affected rows
+				try {
+					ar = psTag.executeUpdate();
+				} catch (SQLException e) {
+					if (!isDuplicateKey(e)) throw e;
+					ar = 0;
 				}
-			} else {
+
 				if (ar == 0) {
 					// nothing was inserted (already exists)
 					return false;
@@ -558,69 +1873,108 @@ public class H2DAO implements IDAO {
 					tag.setId(rs.getLong(1));
 					rs.close();
 				}
+				tag.markClean();
+				return true;
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+				return false; // will not get here
 			}
-			return true;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public long tagItems(long[] ids, Tag[] tags) throws Exception {
-		if (ids.length == 0 || tags.length == 0) return 0;
-		boolean commitState = con.getAutoCommit();
-		con.setAutoCommit(false);
-		try (PreparedStatement psMap = con.prepareStatement(sql.get("insert_tag_item_map"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		pool.lockWriter();
+		try {
+			if (ids.length == 0 || tags.length == 0) return 0;
+			Connection con = pool.writer().getConnection();
+			boolean commitState = con.getAutoCommit();
+			con.setAutoCommit(false);
 			start();
-			for (int i = 0; i < ids.length; ++i) {
-				for (Tag t : tags) {
-					addUpdateTag(t, false);
-					psMap.setLong(1, ids[i]);
-					psMap.setString(2, t.getName());
-					psMap.addBatch();
-					if (cancel.get()) {
+			try {
+				Map<String, Long> tagIds = new HashMap<>(tags.length * 2);
+				resolveTagIds(Arrays.asList(tags), tagIds);
+				PreparedStatement psMap = stmts().prepare("insert_tag_item");
+				for (int i = 0; i < ids.length; ++i) {
+					for (Tag t : tags) {
+						Long tagId = tagIds.get(t.getName());
+						if (tagId == null) continue;
+						psMap.setLong(1, ids[i]);
+						psMap.setLong(2, tagId);
+						psMap.addBatch();
+					}
+					if (cancelled()) {
 						psMap.executeBatch();
-						finish();
 						return i;
 					}
+					if ((i + 1) % batchSize == 0) psMap.executeBatch();
 				}
+				psMap.executeBatch();
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+			} finally {
+				finish();
+				// when called within a larger transaction, leave the commit to it
+				if (commitState) con.commit();
+				con.setAutoCommit(commitState);
 			}
-			psMap.executeBatch();
-		} catch (SQLException e) {
-			finish();
-			throwException("err.db.access", e);
+			return ids.length;
 		} finally {
-			con.commit();
-			con.setAutoCommit(commitState);
+			pool.unlockWriter();
 		}
-		finish();
-		return ids.length;
 	}
 
 	@Override
 	public boolean removeItem(long id) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("remove_item"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			ps.setLong(1, id);
-			return ps.executeUpdate() > 0;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
+		pool.lockWriter();
+		try {
+			try {
+				PreparedStatement ps = stmts().prepare("remove_item");
+				ps.setLong(1, id);
+				return ps.executeUpdate() > 0;
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+				return false; // will not get here
+			}
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public long removeItems(long... ids) throws Exception {
-		String stmnt = sql.get("remove_items").replace("CSV", longArr2CsvString(ids));
-
-		try (Statement s = con.createStatement( ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			return s.executeUpdate(stmnt);
+		pool.lockWriter();
+		try {
+			Objects.requireNonNull(ids);
+			ids = distinct(ids);
+
+			// H2 evaluates IN (SELECT ...) once per row, so deletes go by primary key in batches instead
+			long count = 0;
+			try {
+				PreparedStatement ps = stmts().prepare("remove_item");
+				for (int from = 0; from < ids.length; from += ID_CHUNK) {
+					for (int i = from; i < Math.min(ids.length, from + ID_CHUNK); i++) {
+						ps.setLong(1, ids[i]);
+						ps.addBatch();
+					}
+					for (int n : ps.executeBatch()) count += n;
+				}
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+			}
+			return count;
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public Tag getTag(long id) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tag_by_id"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tag_by_id");
 			ps.setLong(1, id);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return new Tag("");}
@@ -631,45 +1985,95 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public void loadAllTags(Collection<Tag> tags) throws Exception {
 		Objects.requireNonNull(tags);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tags");
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return;}
 			start();
-			while (rs.next()) {
-				tags.add(fetchTag(rs));
-				if (cancel.get()) break;
+			try {
+				while (rs.next()) {
+					tags.add(fetchTag(rs));
+					if (cancelled()) break;
+				}
+			} finally {
+				finish();
 			}
-			finish();
 			rs.close();
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 	}
 
+	@Deprecated
 	@Override
 	public void loadAllTags(Collection<Tag> tags, long limit, long offset) throws Exception {
 		Objects.requireNonNull(tags);
 		D.checkPositive(limit, offset);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tags_2"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tags_2");
 			ps.setLong(1, limit);
 			ps.setLong(2, offset);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return;}
 			start();
-			while (rs.next()) {
-				tags.add(fetchTag(rs));
-				if (cancel.get()) break;
+			try {
+				while (rs.next()) {
+					tags.add(fetchTag(rs));
+					if (cancelled()) break;
+				}
+			} finally {
+				finish();
+			}
+			rs.close();
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
+		}
+	}
+
+	@Override
+	public String loadTagsPage(Collection<Tag> tags, SortKey sortKey, long limit, String token) throws Exception {
+		Objects.requireNonNull(tags);
+		D.checkValidation(limit > 0);
+		ConnectionPool p = read();
+		try {
+			ResultSet rs = preparePage("tags", sortKey, limit, token).executeQuery();
+			long count = 0;
+			PageToken next = null;
+			start();
+			try {
+				while (rs.next()) {
+					tags.add(fetchTag(rs));
+					// the stored values, since the registered tag instance may have unsaved changes
+					next = new PageToken(sortKey, rs.getLong("id"), rs.getObject(sortKey.name()));
+					count++;
+					if (cancelled()) break;
+				}
+				// a cancelled page may be short without being the last one
+				if (count < limit && !cancelled()) next = null;
+			} finally {
+				finish();
 			}
-			finish();
 			rs.close();
+			return next == null ? null : next.toString();
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
+			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
@@ -677,28 +2081,57 @@ public class H2DAO implements IDAO {
 	public void loadTagsById(Collection<Tag> tags, long... ids) throws Exception {
 		Objects.requireNonNull(tags);
 		Objects.requireNonNull(ids);
-		if (ids.length == 0) return;
+		ids = distinct(ids);
 
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_tags_by_id").replace("CSV", longArr2CsvString(ids)), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			ResultSet rs = ps.executeQuery();
-			if (!rs.isBeforeFirst()) {rs.close();return;}
-			start();
-			while (rs.next()) {
-				tags.add(fetchTag(rs));
-				if (cancel.get()) break;
+		ConnectionPool p = read();
+		start();
+		try {
+			PreparedStatement ps = stmts().prepare("select_tags_by_id");
+			for (int from = 0; from < ids.length && !cancelled(); from += ID_CHUNK) {
+				ps.setObject(1, idList(ids, from));
+				ResultSet rs = ps.executeQuery();
+				while (rs.next()) {
+					tags.add(fetchTag(rs));
+					if (cancelled()) break;
+				}
+				rs.close();
 			}
-			finish();
-			rs.close();
 		} catch (SQLException e) {
-			finish();
 			throwException("err.db.access", e);
+		} finally {
+			finish();
+			p.releaseReader();
 		}
 	}
 
+	@Override
+	public Cursor<Tag> openTagCursor(int fetchSize) throws Exception {
+		return new BlockCursor<Tag>(fetchSize) {
+			@Override
+			long readBlock(long afterId, int limit, Collection<Tag> block) throws SQLException {
+				PreparedStatement ps = stmts().prepare("select_tags_after");
+				ps.setLong(1, afterId);
+				ps.setLong(2, limit);
+				ps.setFetchSize(limit);
+				ResultSet rs = ps.executeQuery();
+				long lastId = -1;
+				while (rs.next()) {
+					Tag t = fetchTag(rs);
+					block.add(t);
+					lastId = rs.getLong("id");
+				}
+				rs.close();
+				return lastId;
+			}
+		};
+	}
+
 	@Override
 	public long getTagItemCount(Tag tag) throws Exception {
 		Objects.requireNonNull(tag);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_tag_items"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_tag_items");
 			ps.setLong(1, tag.getId());
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return 0;}
@@ -709,108 +2142,235 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
-	public Map<Long, Long> getTagItemCounts(Collection<Tag> tags) throws Exception {
+	public LongLongMap getTagItemCounts(Collection<Tag> tags) throws Exception {
 		Objects.requireNonNull(tags);
-		Map<Long, Long> counts = new LinkedHashMap<>(tags.size());
+		long[] ids = new long[tags.size()];
+		int n = 0;
+		for (Tag t : tags) ids[n++] = t.getId();
+		ids = distinct(ids);
+
+		LongLongMap counts = new LongLongMap(ids.length);
+		for (long id : ids) counts.put(id, 0);
+		ConnectionPool p = read();
 		start();
-		for (Tag t : tags) {
-			counts.put(t.getId(), getTagItemCount(t));
-			if (cancel.get()) break;
+		try {
+			PreparedStatement ps = stmts().prepare("count_items_of_tags");
+			for (int from = 0; from < ids.length && !cancelled(); from += ID_CHUNK) {
+				ps.setObject(1, idList(ids, from));
+				fetchCounts(ps.executeQuery(), counts);
+			}
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			finish();
+			p.releaseReader();
+		}
+		return counts;
+	}
+
+	@Override
+	public LongLongMap getAllTagItemCounts() throws Exception {
+		LongLongMap counts = new LongLongMap();
+		ConnectionPool p = read();
+		try {
+			fetchCounts(stmts().prepare("count_items_of_all_tags").executeQuery(), counts);
+		} catch (SQLException e) {
+			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
-		finish();
 		return counts;
 	}
 
 	@Override
 	public void loadItemTags(long id, Collection<Tag> tags) throws Exception {
 		Objects.requireNonNull(tags);
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_item_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_item_tags");
 			ps.setLong(1, id);
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return;}
 			start();
-			while (rs.next()) {
-				tags.add(fetchTag(rs));
-				if (cancel.get()) break;
+			try {
+				while (rs.next()) {
+					tags.add(fetchTag(rs));
+					if (cancelled()) break;
+				}
+			} finally {
+				finish();
 			}
-			finish();
 			rs.close();
 		} catch (SQLException e) {
-			finish();
 			throwException("err.db.access", e);
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public boolean removeTag(long id) throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("remove_tag"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			ps.setLong(1, id);
-			return ps.executeUpdate() > 0;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
+		pool.lockWriter();
+		try {
+			try {
+				PreparedStatement ps = stmts().prepare("remove_tag");
+				ps.setLong(1, id);
+				return ps.executeUpdate() > 0;
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+				return false; // will not get here
+			}
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public boolean removeTagWithItems(long id) throws Exception {
-		try (PreparedStatement psItems = con.prepareStatement(sql.get("remove_tag_items"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-		     PreparedStatement psTag = con.prepareStatement(sql.get("remove_tag"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			psItems.setLong(1, id);
-			psItems.execute();
-			psTag.setLong(1, id);
-			psTag.execute();
-			return true;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			boolean commitState = con.getAutoCommit();
+			con.setAutoCommit(false);
+			start();
+			try {
+				// look the items up by the tag index and delete them by key; the cascade takes their tag links
+				PreparedStatement psIds = stmts().prepare("select_tag_item_ids");
+				PreparedStatement psItem = stmts().prepare("remove_item");
+				psIds.setLong(1, id);
+				psIds.setLong(2, batchSize);
+				while (true) {
+					ResultSet rs = psIds.executeQuery();
+					int n = 0;
+					while (rs.next()) {
+						psItem.setLong(1, rs.getLong(1));
+						psItem.addBatch();
+						n++;
+					}
+					rs.close();
+					if (n == 0) break;
+					psItem.executeBatch();
+					con.commit();
+					progress().addAndGet(n);
+					if (cancelled()) return false;
+				}
+
+				PreparedStatement psTag = stmts().prepare("remove_tag");
+				psTag.setLong(1, id);
+				boolean removed = psTag.executeUpdate() > 0;
+				con.commit();
+				return removed;
+			} catch (SQLException e) {
+				con.rollback();
+				throwException("err.db.access", e);
+				return false; // will not get here
+			} finally {
+				finish();
+				con.setAutoCommit(commitState);
+			}
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public long removeUnusedTags() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("remove_unused_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			return ps.executeUpdate();
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			boolean commitState = con.getAutoCommit();
+			con.setAutoCommit(false);
+			start();
+			try {
+				PreparedStatement ps = stmts().prepare("remove_unused_tags");
+				ps.setLong(1, batchSize);
+				long count = 0;
+				int n;
+				do {
+					n = ps.executeUpdate();
+					con.commit();
+					count += n;
+					progress().set(count);
+				} while (n == batchSize && !cancelled());
+				return count;
+			} catch (SQLException e) {
+				con.rollback();
+				throwException("err.db.access", e);
+				return 0; // will not get here
+			} finally {
+				finish();
+				con.setAutoCommit(commitState);
+			}
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	@Override
+	public long removeUnusedImages() throws Exception {
+		pool.lockWriter();
+		try {
+			PreparedStatement ps = stmts().prepare("remove_unused_images");
+			long count = ps.executeUpdate();
+			if (count > 0) imageCache.clear();
+			return count;
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			pool.unlockWriter();
 		}
 	}
 
 	@Override
 	public boolean replaceTag(long removeId, long keepId) throws Exception {
-		try (PreparedStatement psRep = con.prepareStatement(sql.get("replace_tag"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-		     PreparedStatement psDel = con.prepareStatement(sql.get("remove_tag"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-			psRep.setLong(1, keepId);
-			psRep.setLong(2, removeId);
-			psRep.execute();
-			psDel.setLong(1, removeId);
-			psDel.execute();
-			return true;
-		} catch (SQLException e) {
-			throwException("err.db.access", e);
-			return false; // will not get here
-		}
+		pool.lockWriter();
+		try {
+			try {
+				PreparedStatement psRep = stmts().prepare("replace_tag");
+				PreparedStatement psDel = stmts().prepare("remove_tag");
+				psRep.setLong(1, keepId);
+				psRep.setLong(2, removeId);
+				psRep.execute();
+				psDel.setLong(1, removeId);
+				psDel.execute();
+				return true;
+			} catch (SQLException e) {
+				throwException("err.db.access", e);
+				return false; // will not get here
+			}
 
+		} finally {
+			pool.unlockWriter();
+		}
 	}
 
 	@Override
 	public boolean replaceTag(long removeId, Tag tag) throws Exception {
-		Objects.requireNonNull(tag);
-		addUpdateTag(tag, false);
-		long keepId = tag.getId();
-		if (keepId == 0) keepId = tag.getId();
-		replaceTag(removeId, keepId);
-		return true;
+		pool.lockWriter();
+		try {
+			Objects.requireNonNull(tag);
+			addUpdateTag(tag, false);
+			long keepId = tag.getId();
+			if (keepId == 0) keepId = tag.getId();
+			replaceTag(removeId, keepId);
+			return true;
+		} finally {
+			pool.unlockWriter();
+		}
 	}
 
 	@Override
 	public long getItemCount() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_items"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_items");
 			ResultSet rs = ps.executeQuery();
 			long count = fetchCount(rs);
 			rs.close();
@@ -818,12 +2378,16 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public long getTagCount() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_tags");
 			ResultSet rs = ps.executeQuery();
 			long count = fetchCount(rs);
 			rs.close();
@@ -831,12 +2395,16 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public long getUnusedTagCount() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_unused_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_unused_tags");
 			ResultSet rs = ps.executeQuery();
 			long count = fetchCount(rs);
 			rs.close();
@@ -844,12 +2412,16 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public long getUntaggedItemCount() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("count_untagged_items"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("count_untagged_items");
 			ResultSet rs = ps.executeQuery();
 			long count = fetchCount(rs);
 			rs.close();
@@ -857,12 +2429,16 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return 0; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public Tag getMostUsedTag() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_most_used_tag"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_most_used_tag");
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return new Tag("");}
 			rs.next();
@@ -872,27 +2448,34 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public Item getMostTaggedItem() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_most_tagged_item"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_most_tagged_item");
 			ResultSet rs = ps.executeQuery();
-			if (!rs.isBeforeFirst()) {rs.close();return new Item(null);}
-			rs.next();
-			Item i = fetchItem(rs);
+			List<Item> found = new ArrayList<>(1);
+			fetchItems(rs, found);
 			rs.close();
-			return i;
+			return found.isEmpty() ? new Item(null) : found.get(0);
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
 	@Override
 	public Collection<Tag> getTop5Tags() throws Exception {
-		try (PreparedStatement ps = con.prepareStatement(sql.get("select_most_5_tags"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+		ConnectionPool p = read();
+		try {
+			PreparedStatement ps = stmts().prepare("select_most_5_tags");
 			ResultSet rs = ps.executeQuery();
 			if (!rs.isBeforeFirst()) {rs.close();return new HashSet<>();}
 			Collection<Tag> top = new LinkedHashSet<>(5);
@@ -904,6 +2487,8 @@ public class H2DAO implements IDAO {
 		} catch (SQLException e) {
 			throwException("err.db.access", e);
 			return null; // will not get here
+		} finally {
+			p.releaseReader();
 		}
 	}
 
@@ -917,36 +2502,23 @@ public class H2DAO implements IDAO {
 		return 0;  // TODO
 	}
 
-	private Item fetchItem(ResultSet rs) throws SQLException {
+	private Item fetchItem(ResultSet rs, boolean withTags) throws SQLException {
 		long imageId = rs.getLong("imageid");
-		Image img;
-		if (imageId == 0) img = null;
-		else {
-			img = Image.getIfExists(imageId);
-			if (img == null) {
-				PreparedStatement ps2 = con.prepareStatement(sql.get("select_image_by_id"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-				ps2.setLong(1, imageId);
-				ResultSet rs2 = ps2.executeQuery();
-				if (rs2.isBeforeFirst()) {
-					rs2.next();
-					img = new Image();
-					img.setId(rs2.getLong("id"));
-					img.setData(rs2.getBytes("data"));
-				}
-				rs2.close();
-				ps2.close();
-			}
-		}
+		Image img = imageId == 0 ? null : new Image(imageId, imageLoader);
 
 		long id = rs.getLong("id");
 		Collection<Tag> tags = new HashSet<>();
-		try {
-			getItemTags(id, tags);
-		} catch (Exception e) {
-			throw (SQLException) e.getCause();
+		if (withTags) {
+			try {
+				getItemTags(id, tags);
+			} catch (Exception e) {
+				throw (SQLException) e.getCause();
+			}
 		}
 
-		return new Item(rs.getLong("id"), rs.getString("name"), rs.getString("info"), rs.getString("ref"), rs.getBoolean("privy"), rs.getString("username"), rs.getString("password"), tags, img, rs.getTimestamp("dateadd"), rs.getTimestamp("datemod"));
+		Item item = new Item(rs.getLong("id"), rs.getString("name"), rs.getString("info"), rs.getString("ref"), rs.getBoolean("privy"), rs.getString("username"), rs.getString("password"), tags, img, rs.getTimestamp("dateadd"), rs.getTimestamp("datemod"));
+		item.markClean();
+		return item;
 	}
 
 	private Tag fetchTag(ResultSet rs) throws SQLException {
@@ -960,7 +2532,7 @@ public class H2DAO implements IDAO {
 		else {
 			tg = TagGroup.getIfExists(groupId);
 			if (tg == null) {
-				PreparedStatement ps = con.prepareStatement(sql.get("select_tag_group_by_id"));
+				PreparedStatement ps = stmts().prepare("select_tag_group_by_id");
 				ps.setLong(1, groupId);
 				ResultSet rs2 = ps.executeQuery();
 
@@ -971,24 +2543,125 @@ public class H2DAO implements IDAO {
 					tg.setName(rs2.getString("name"));
 				}
 				rs2.close();
-				ps.close();
 			}
 		}
 		long parentId = rs.getLong("parentid");
 		Long pid = parentId == 0 ? null : parentId;
-		Tag tag =  new Tag(id, rs.getString("name"), rs.getString("color"), pid, tg, rs.getTimestamp("dateadd"), rs.getTimestamp("datemod"));
-		rs.close();
+		Tag tag = new Tag(id, rs.getString("name"), rs.getString("color"), pid, tg, rs.getTimestamp("dateadd"), rs.getTimestamp("datemod"));
+		tag.markClean();
 		return tag;
 	}
 
 	private void fetchItems(ResultSet rs, Collection<Item> items) throws SQLException {
+		fetchItems(rs, items, false);
+	}
+
+	/**
+	 * Joins the operation of the calling thread, if any, so callers reading several chunks are cancelled as a whole.
+	 *
+	 * @param allItems true if the result set covers the whole item table, in which case tags are hydrated with a single scan
+	 */
+	private void fetchItems(ResultSet rs, Collection<Item> items, boolean allItems) throws SQLException {
 		if (!rs.isBeforeFirst()) return;
 		start();
+		try {
+			if (tagHydration == TagHydration.PER_ITEM) {
+				while (rs.next()) {
+					items.add(fetchItem(rs, true));
+					if (cancelled()) break;
+				}
+			} else {
+				Map<Long, Item> fetched = new LinkedHashMap<>();
+				while (rs.next()) {
+					Item i = fetchItem(rs, false);
+					fetched.put(i.getId(), i);
+					if (cancelled()) break;
+				}
+				hydrateTags(fetched, allItems);
+				items.addAll(fetched.values());
+			}
+		} finally {
+			finish();
+		}
+		rs.close();
+	}
+
+	/**
+	 * Loads the tags of all the specified items using one join per chunk of ids instead of one query per item.
+	 *
+	 * @param items    fetched items mapped by their ids
+	 * @param allItems true to scan the whole tag_item table at once instead of querying by id
+	 */
+	private void hydrateTags(Map<Long, Item> items, boolean allItems) throws SQLException {
+		if (items.isEmpty()) return;
+		Map<Long, Collection<Tag>> tags = new HashMap<>(items.size());
+		if (allItems) {
+			fetchItemTags(stmts().prepare("select_tags_of_all_items").executeQuery(), items, tags);
+		} else {
+			long[] ids = new long[items.size()];
+			int n = 0;
+			for (long id : items.keySet()) ids[n++] = id;
+			PreparedStatement ps = stmts().prepare("select_tags_of_items");
+			for (int from = 0; from < ids.length; from += ID_CHUNK) {
+				ps.setObject(1, idList(ids, from));
+				fetchItemTags(ps.executeQuery(), items, tags);
+			}
+		}
+
+		for (Map.Entry<Long, Collection<Tag>> e : tags.entrySet()) {
+			attachTags(items.get(e.getKey()), e.getValue());
+		}
+	}
+
+	private void fetchItemTags(ResultSet rs, Map<Long, Item> items, Map<Long, Collection<Tag>> tags) throws SQLException {
+		while (rs.next()) {
+			long itemId = rs.getLong("itemid");
+			if (!items.containsKey(itemId)) continue;
+			Collection<Tag> itemTags = tags.get(itemId);
+			if (itemTags == null) tags.put(itemId, (itemTags = new HashSet<>()));
+			itemTags.add(fetchTag(rs));
+		}
+		rs.close();
+	}
+
+	private void attachTags(Item item, Collection<Tag> tags) {
+		// loading tags is not a modification; keep the stored datemod and the dirty state
+		Set<Field> dirty = item.getDirtyFields();
+		Timestamp datemod = item.getDatemod();
+		item.setTags(tags);
+		item.setDatemod(datemod);
+		if (!dirty.contains(Field.tags)) item.markClean(Field.tags);
+		if (!dirty.contains(Field.datemod)) item.markClean(Field.datemod);
+	}
+
+	/**
+	 * @param table "items" or "tags"
+	 * @throws IllegalArgumentException if the token is invalid for the sort key
+	 */
+	private PreparedStatement preparePage(String table, SortKey sortKey, long limit, String token) throws SQLException {
+		Objects.requireNonNull(sortKey);
+		PreparedStatement ps;
+		if (token == null) {
+			ps = stmts().prepareForColumn("select_" + table + "_first_page", sortKey.name());
+			ps.setLong(1, limit);
+		} else {
+			PageToken after = PageToken.parse(token, sortKey);
+			ps = stmts().prepareForColumn("select_" + table + "_next_page", sortKey.name());
+			ps.setObject(1, after.value);
+			ps.setObject(2, after.value);
+			ps.setLong(3, after.id);
+			ps.setLong(4, limit);
+		}
+		return ps;
+	}
+
+	/**
+	 * Reads (id, count) rows.
+	 */
+	private void fetchCounts(ResultSet rs, LongLongMap counts) throws SQLException {
 		while (rs.next()) {
-			items.add(fetchItem(rs));
-			if (cancel.get()) break;
+			counts.put(rs.getLong(1), rs.getLong(2));
 		}
-		finish();
 		rs.close();
 	}
 
@@ -998,16 +2671,174 @@ public class H2DAO implements IDAO {
 		return rs.getLong(1);
 	}
 
-	private String longArr2CsvString(long[] arr) {
-		StringBuilder str = new StringBuilder();
-		for (Long id : arr) {
-			str.append(id).append(",");
+	/**
+	 * @return the sorted ids without duplicates, so no record is read twice across chunks
+	 */
+	private static long[] distinct(long[] ids) {
+		long[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) sorted[n++] = sorted[i];
 		}
-		str.deleteCharAt(str.length() - 1);
-		return str.toString();
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * @return up to {@link #ID_CHUNK} ids starting at {@code from}, boxed for binding to an id list parameter
+	 */
+	private static Long[] idList(long[] ids, int from) {
+		Long[] chunk = new Long[Math.min(ids.length - from, ID_CHUNK)];
+		for (int i = 0; i < chunk.length; i++) chunk[i] = ids[from + i];
+		return chunk;
+	}
+
+	/**
+	 * @return true if the specified exception was caused by a unique or primary key violation
+	 */
+	private static boolean isDuplicateKey(SQLException e) {
+		return "23505".equals(e.getSQLState());
 	}
 
 	private void throwException(String msgKey, Throwable cause) throws Exception {
 		throw new Exception(u.i18n().getString(msgKey), cause);
 	}
+
+	/**
+	 * Reads records in blocks ordered by id; each block is one short query, so no result set stays open between calls.
+	 */
+	private abstract class BlockCursor<T> implements Cursor<T> {
+		private final int fetchSize;
+		private final Deque<T> block;
+		private final Operation op;
+		private long lastId;
+		private boolean exhausted;
+
+		BlockCursor(int fetchSize) {
+			D.checkValidation(fetchSize > 0);
+			this.fetchSize = fetchSize;
+			this.op = new Operation(cancels.get());
+			this.block = new ArrayDeque<>(fetchSize);
+			this.lastId = 0;
+			this.exhausted = false;
+		}
+
+		/**
+		 * Reads at most {@code limit} records whose ids are greater than {@code afterId} into {@code block}.
+		 *
+		 * @return the id of the last record read or -1 if nothing was read
+		 */
+		abstract long readBlock(long afterId, int limit, Collection<T> block) throws SQLException;
+
+		@Override
+		public boolean hasNext() {
+			if (block.isEmpty() && !exhausted) {
+				if (op.cancelled()) {
+					close();
+					return false;
+				}
+				ConnectionPool p = pool;
+				try {
+					// a cursor holds a read connection only while it reads a block
+					p.acquireReader();
+					try {
+						long id = readBlock(lastId, fetchSize, block);
+						if (id < 0 || block.size() < fetchSize) exhausted = true;
+						else lastId = id;
+					} finally {
+						p.releaseReader();
+					}
+				} catch (SQLException e) {
+					close();
+					throw new IllegalStateException(u.i18n().getString("err.db.access"), e);
+				}
+			}
+			return !block.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return block.poll();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			exhausted = true;
+			block.clear();
+		}
+	}
+
+	/**
+	 * How a library is kept on disk.
+	 */
+	public enum StorageMode {
+		/**
+		 * The library is a zip of the database. It's unzipped to a temporary directory on open and zipped back on
+		 * close, so both take time and disk space in proportion to its size.
+		 */
+		ZIP,
+		/**
+		 * The library is the database file itself ({@code *.h2.db}) and is opened in place. Use
+		 * {@link #exportLibrary(String)} to get a zip of it.
+		 */
+		DIRECT,
+		/**
+		 * The library is a database file like in {@link #DIRECT} mode, but it's loaded into memory on open, so reads
+		 * and writes never wait for the disk. Changes are written to the file on a background thread; see
+		 * {@link ChangeLog}. Closing waits for the last of them, and {@link #checkpoint()} for those made so far.
+		 */
+		MEMORY
+	}
+
+	/**
+	 * Named sets of H2 settings, applied with {@link #setStorageProfile(StorageProfile)}.
+	 */
+	public enum StorageProfile {
+		/**
+		 * H2's own defaults: a 16 MB page cache, commits written within half a second, and a one second lock timeout.
+		 */
+		DEFAULT(16 * 1024, 500, 1000, true),
+		/**
+		 * A 4 MB page cache, and commits gathered for two seconds to wake the disk less often.
+		 */
+		SMALL_LAPTOP(4 * 1024, 2000, 1000, true),
+		/**
+		 * A 128 MB page cache, and a ten second lock timeout for long running writes.
+		 */
+		LARGE_LIBRARY(128 * 1024, 500, 10000, true),
+		/**
+		 * A 64 MB page cache, commits gathered for two seconds, and no undo log for the writer. Large write
+		 * transactions get much faster, but lose their atomicity; see {@link #beginBulkImport()}.
+		 */
+		BULK_IMPORT(64 * 1024, 2000, 10000, false);
+
+		final int cacheSize; // KB
+		final int writeDelay; // ms
+		final int lockTimeout; // ms
+		final boolean undoLog;
+
+		StorageProfile(int cacheSize, int writeDelay, int lockTimeout, boolean undoLog) {
+			this.cacheSize = cacheSize;
+			this.writeDelay = writeDelay;
+			this.lockTimeout = lockTimeout;
+			this.undoLog = undoLog;
+		}
+	}
+
+	public enum TagHydration {
+		/**
+		 * Tags are fetched with one query per loaded item.
+		 */
+		PER_ITEM,
+		/**
+		 * Tags of all loaded items are fetched together and assigned in memory.
+		 */
+		BATCH
+	}
 }
@@ -6,9 +6,9 @@ package datastore;
 
 import datamodel.Item;
 import datamodel.Tag;
+import utils.LongLongMap;
 
 import java.util.Collection;
-import java.util.Map;
 
 /**
  * Author: Anas H. Sulaiman 
@@ -38,6 +38,18 @@ public interface IDAO extends AutoCloseable {
 
 	public void close() throws Exception;
 
+	/**
+	 * Makes everything committed so far durable in the working storage, writing only what changed since the last
+	 * checkpoint. If the application dies before {@link #close()}, the next {@link #open(boolean)} recovers the
+	 * library as of the last checkpoint at least. Does nothing if the storage isn't open.
+	 */
+	public void checkpoint() throws Exception;
+
+	/**
+	 * @return the number of write operations since the last checkpoint, or since the storage was opened
+	 */
+	public long getWritesSinceCheckpoint();
+
 	// working
 
 	/**
@@ -45,6 +57,12 @@ public interface IDAO extends AutoCloseable {
 	 */
 	public boolean isWorking();
 
+	/**
+	 * @return the number of records the ongoing operation has processed so far, or the last one's total if there is
+	 * none
+	 */
+	public long getProgress();
+
 	/**
 	 * Stops whatever operation is ongoing with the storage. This may not have an immediate effect.
 	 */
@@ -57,8 +75,23 @@ public interface IDAO extends AutoCloseable {
 
 	public void restore(String path) throws Exception;
 
+	/**
+	 * Writes a copy of the whole library, as a zip, to the specified path. Unlike {@link #backup(String)}, the copy
+	 * is a library in its own right and can be opened like any other.
+	 *
+	 * @param path the zip file to write
+	 */
+	public void exportLibrary(String path) throws Exception;
+
 	public long importItems(String path) throws Exception;
 
+	/**
+	 * @return the checkpoint last saved for the specified import source, or null if there is none
+	 */
+	public ImportCheckpoint getImportCheckpoint(String source) throws Exception;
+
+	public void removeImportCheckpoint(String source) throws Exception;
+
 	public long exportItems(String path) throws Exception;
 
 	public boolean itemExist(String ref) throws Exception;
@@ -78,10 +111,41 @@ public interface IDAO extends AutoCloseable {
 
 	public void loadAllItems(Collection<Item> items) throws Exception;
 
+	/**
+	 * @deprecated skipped rows are still read; use {@link #loadItemsPage(java.util.Collection, SortKey, long, String)}
+	 */
+	@Deprecated
 	public void loadAllItems(Collection<Item> items, long limit, long offset) throws Exception;
 
+	/**
+	 * Loads the page of items that follows the specified continuation token. Fetching a page costs the same no matter
+	 * how deep into the items it is.
+	 *
+	 * @param sortKey the order of items; ties are broken by id
+	 * @param limit   the maximum number of items to load
+	 * @param token   null for the first page, otherwise the token returned with the previous page for the same sort key
+	 * @return the continuation token of the next page, or null if no items follow this page. A page cut short by
+	 * {@link #cancel()} still returns the token of its last item, so loading can be resumed from there.
+	 * @throws IllegalArgumentException if {@code limit} is not positive or the token is invalid for the sort key
+	 */
+	public String loadItemsPage(Collection<Item> items, SortKey sortKey, long limit, String token) throws Exception;
+
 	public void loadItemsById(Collection<Item> items, long... ids) throws Exception;
 
+	/**
+	 * Opens a cursor over all items ordered by id. Items are read in blocks of {@code fetchSize} along with their tags,
+	 * so memory use doesn't depend on the number of items. The cursor ends early if {@link #cancel()} is called.
+	 *
+	 * @throws IllegalArgumentException if {@code fetchSize} is not positive
+	 */
+	public Cursor<Item> openItemCursor(int fetchSize) throws Exception;
+
+	/**
+	 * Loaded items only hold a handle to their image; its data is read on first access.
+	 * This loads the data of all the specified items' images at once.
+	 */
+	public void loadItemImages(Collection<Item> items) throws Exception;
+
 	public void getItemTags(long id, Collection<Tag> tags) throws Exception;
 
 	public int getItemTagCount(long id) throws Exception;
@@ -94,8 +158,24 @@ public interface IDAO extends AutoCloseable {
 	 */
 	public boolean addUpdateItem(Item item, boolean update) throws Exception;
 
+	/**
+	 * Rejected updates, see {@link #addUpdateItem(Item, boolean)}, are skipped and their items left dirty.
+	 *
+	 * @return the number of items processed, in iteration order; fewer than given if {@link #cancel()} was called
+	 */
 	public long addUpdateItems(Collection<Item> items, boolean update) throws Exception;
 
+	/**
+	 * Updates and inserts the specified items and saves the specified checkpoint in one transaction, so either all of
+	 * them are stored or none is. Rejected updates and new items whose ref already exists are skipped as with
+	 * {@link #addUpdateItems(java.util.Collection, boolean)}. If nothing is stored, the items may still have been
+	 * given ids and marked clean.
+	 *
+	 * @param checkpoint the checkpoint to save along with the items, or null
+	 * @return false if {@link #cancel()} was called, in which case nothing is stored
+	 */
+	public boolean addUpdateItems(Collection<Item> updates, Collection<Item> inserts, ImportCheckpoint checkpoint) throws Exception;
+
 	/**
 	 * @return id of the inserted/updated tag
 	 * @throws Exception
@@ -112,22 +192,72 @@ public interface IDAO extends AutoCloseable {
 
 	public void loadAllTags(Collection<Tag> tags) throws Exception;
 
+	/**
+	 * @deprecated skipped rows are still read; use {@link #loadTagsPage(java.util.Collection, SortKey, long, String)}
+	 */
+	@Deprecated
 	public void loadAllTags(Collection<Tag> tags, long limit, long offset) throws Exception;
 
+	/**
+	 * Loads the page of tags that follows the specified continuation token.
+	 *
+	 * @see #loadItemsPage(java.util.Collection, SortKey, long, String)
+	 */
+	public String loadTagsPage(Collection<Tag> tags, SortKey sortKey, long limit, String token) throws Exception;
+
 	public void loadTagsById(Collection<Tag> tags, long... ids) throws Exception;
 
+	/**
+	 * Opens a cursor over all tags ordered by id. Tags are read in blocks of {@code fetchSize}.
+	 * The cursor ends early if {@link #cancel()} is called.
+	 *
+	 * @throws IllegalArgumentException if {@code fetchSize} is not positive
+	 */
+	public Cursor<Tag> openTagCursor(int fetchSize) throws Exception;
+
 	public long getTagItemCount(Tag tag) throws Exception;
 
-	public Map<Long, Long> getTagItemCounts(Collection<Tag> tags) throws Exception;
+	/**
+	 * Counts the items of the specified tags with one grouped query per chunk of tag ids.
+	 *
+	 * @return the item count of each tag mapped by tag id; tags without items are mapped to zero
+	 */
+	public LongLongMap getTagItemCounts(Collection<Tag> tags) throws Exception;
+
+	/**
+	 * Counts the items of all tags in a single pass.
+	 *
+	 * @return the item count of each tag mapped by tag id; tags without items are not mapped
+	 */
+	public LongLongMap getAllTagItemCounts() throws Exception;
 
 	public void loadItemTags(long id, Collection<Tag> tags) throws Exception;
 
 	public boolean removeTag(long id) throws Exception;
 
+	/**
+	 * Removes the items of the tag a chunk at a time, each chunk in its own transaction, then the tag itself. If
+	 * cancelled, the items removed so far stay removed and the tag is kept.
+	 *
+	 * @return true if the tag was removed
+	 */
 	public boolean removeTagWithItems(long id) throws Exception;
 
+	/**
+	 * Removes unused tags a chunk at a time, each chunk in its own transaction. Stops early if cancelled.
+	 *
+	 * @return the number of tags removed
+	 */
 	public long removeUnusedTags() throws Exception;
 
+	/**
+	 * Removes the stored images no item references anymore. Images are shared between items with identical image
+	 * data, so an image becomes unused only when its last item is removed or given another image.
+	 *
+	 * @return the number of images removed
+	 */
+	public long removeUnusedImages() throws Exception;
+
 	public boolean replaceTag(long removeId, long keepId) throws Exception;
 
 	public boolean replaceTag(long removeId, Tag tag) throws Exception;
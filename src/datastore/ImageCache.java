@@ -0,0 +1,122 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of image data keyed by image id. The total size of the cached data never exceeds the
+ * byte budget; the least recently used entries are evicted to make room for new ones.
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+public class ImageCache {
+	private final LinkedHashMap<Long, byte[]> entries;
+	private long byteBudget;
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param byteBudget the maximum number of bytes to keep
+	 * @throws IllegalArgumentException if {@code byteBudget} is negative
+	 */
+	public ImageCache(long byteBudget) {
+		D.checkPositive(byteBudget);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.byteBudget = byteBudget;
+		this.size = 0;
+		this.hitCount = this.missCount = this.evictionCount = 0;
+	}
+
+	/**
+	 * @return the cached data of the specified image or null if it's not cached
+	 */
+	public synchronized byte[] get(long id) {
+		byte[] data = entries.get(id);
+		if (data == null) missCount++;
+		else hitCount++;
+		return data;
+	}
+
+	/**
+	 * Caches the data of the specified image. Data larger than the whole budget is not cached.
+	 */
+	public synchronized void put(long id, byte[] data) {
+		invalidate(id);
+		if (data == null || data.length > byteBudget) return;
+		entries.put(id, data);
+		size += data.length;
+		evict();
+	}
+
+	/**
+	 * Removes the specified image from the cache, if it's cached.
+	 */
+	public synchronized void invalidate(long id) {
+		byte[] data = entries.remove(id);
+		if (data != null) size -= data.length;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getByteBudget() {
+		return byteBudget;
+	}
+
+	/**
+	 * Entries are evicted right away if the new budget is smaller than the current size.
+	 *
+	 * @throws IllegalArgumentException if {@code byteBudget} is negative
+	 */
+	public synchronized void setByteBudget(long byteBudget) {
+		D.checkPositive(byteBudget);
+		this.byteBudget = byteBudget;
+		evict();
+	}
+
+	/**
+	 * @return the total number of cached bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of cached images
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Long, byte[]>> itr = entries.entrySet().iterator();
+		while (size > byteBudget && itr.hasNext()) {
+			size -= itr.next().getValue().length;
+			itr.remove();
+			evictionCount++;
+		}
+	}
+}
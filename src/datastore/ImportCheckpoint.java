@@ -0,0 +1,48 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import java.util.Objects;
+
+/**
+ * How far an import of one source got: the number of records from the start of the source that are stored. The
+ * fingerprint identifies the import settings; a checkpoint is only good for a run with the same fingerprint.
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public final class ImportCheckpoint {
+	private final String source;
+	private final String fingerprint;
+	private final long position;
+
+	/**
+	 * @throws IllegalArgumentException if {@code position} is negative
+	 */
+	public ImportCheckpoint(String source, String fingerprint, long position) {
+		D.checkValidation(position >= 0);
+		this.source = Objects.requireNonNull(source);
+		this.fingerprint = Objects.requireNonNull(fingerprint);
+		this.position = position;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public String toString() {
+		return source + "@" + position + " (" + fingerprint + ")";
+	}
+}
@@ -0,0 +1,58 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import utils.D;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * The position after the last record of a page: its sort key value and its id.
+ * Callers only see it as an opaque string.
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+final class PageToken {
+	private static final String SEP = "\n";
+	final SortKey sortKey;
+	final long id;
+	final Object value; // Long, String or Timestamp depending on sortKey
+
+	PageToken(SortKey sortKey, long id, Object value) {
+		this.sortKey = Objects.requireNonNull(sortKey);
+		this.id = id;
+		this.value = sortKey == SortKey.id ? Long.valueOf(id) : Objects.requireNonNull(value);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the token is malformed or was made for a different sort key
+	 */
+	static PageToken parse(String token, SortKey sortKey) {
+		String[] parts;
+		try {
+			parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(SEP, 3);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("invalid page token", e);
+		}
+		D.checkValidation(parts.length == 3 && parts[0].equals(sortKey.name()));
+		long id = Long.parseLong(parts[1]);
+		switch (sortKey) {
+			case dateadd:
+			case datemod:
+				return new PageToken(sortKey, id, Timestamp.valueOf(parts[2]));
+			default:
+				return new PageToken(sortKey, id, parts[2]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		String s = sortKey.name() + SEP + id + SEP + value;
+		return Base64.getUrlEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,14 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+/**
+ * Orders in which items and tags can be paged. Ties are always broken by id.
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+public enum SortKey {
+	id, name, dateadd, datemod
+}
@@ -0,0 +1,148 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the prepared statements of one connection open for reuse, keyed by their name in {@code sql.sql}.
+ * <p>Statements returned by this cache must not be closed by the caller, and a statement must not be executed again
+ * while a result set it returned earlier is still being read.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+public class StatementCache implements AutoCloseable {
+	private static final String GENERATED_KEYS_SUFFIX = "#keys";
+	private final Connection con;
+	private final Map<String, String> sql;
+	private final Map<String, PreparedStatement> statements;
+	private long hitCount;
+	private long prepareCount;
+
+	StatementCache(Connection con, Map<String, String> sql) {
+		this.con = Objects.requireNonNull(con);
+		this.sql = Objects.requireNonNull(sql);
+		this.statements = new HashMap<>();
+		this.hitCount = this.prepareCount = 0;
+	}
+
+	Connection getConnection() {
+		return con;
+	}
+
+	/**
+	 * @param key the statement name in {@code sql.sql}
+	 * @return a forward-only, read-only statement
+	 */
+	synchronized PreparedStatement prepare(String key) throws SQLException {
+		return prepare(key, false);
+	}
+
+	/**
+	 * @param key           the statement name in {@code sql.sql}
+	 * @param generatedKeys true if the statement should return generated keys
+	 */
+	synchronized PreparedStatement prepare(String key, boolean generatedKeys) throws SQLException {
+		String cacheKey = generatedKeys ? key + GENERATED_KEYS_SUFFIX : key;
+		PreparedStatement ps = statements.get(cacheKey);
+		if (ps != null && !ps.isClosed()) {
+			hitCount++;
+			return ps;
+		}
+
+		String stmnt = Objects.requireNonNull(sql.get(key), key);
+		if (generatedKeys) ps = con.prepareStatement(stmnt, PreparedStatement.RETURN_GENERATED_KEYS);
+		else ps = con.prepareStatement(stmnt, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		prepareCount++;
+		statements.put(cacheKey, ps);
+		return ps;
+	}
+
+	/**
+	 * Prepares a forward-only, read-only statement whose {@code COLUMN} placeholders are replaced by the specified
+	 * column name. Each column gets its own cache entry.
+	 *
+	 * @param key    the statement name in {@code sql.sql}
+	 * @param column a trusted column name; it's spliced into the statement
+	 */
+	synchronized PreparedStatement prepareForColumn(String key, String column) throws SQLException {
+		return prepareSpliced(key, "COLUMN", column);
+	}
+
+	/**
+	 * Prepares a statement whose {@code ASSIGNMENTS} placeholder is replaced by the specified SET clause. Each
+	 * distinct clause gets its own cache entry.
+	 *
+	 * @param key         the statement name in {@code sql.sql}
+	 * @param assignments a trusted list of column assignments; it's spliced into the statement
+	 */
+	synchronized PreparedStatement prepareForAssignments(String key, String assignments) throws SQLException {
+		return prepareSpliced(key, "ASSIGNMENTS", assignments);
+	}
+
+	private PreparedStatement prepareSpliced(String key, String placeholder, String text) throws SQLException {
+		String cacheKey = key + ":" + text;
+		PreparedStatement ps = statements.get(cacheKey);
+		if (ps != null && !ps.isClosed()) {
+			hitCount++;
+			return ps;
+		}
+
+		String stmnt = Objects.requireNonNull(sql.get(key), key).replace(placeholder, text);
+		ps = con.prepareStatement(stmnt, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		prepareCount++;
+		statements.put(cacheKey, ps);
+		return ps;
+	}
+
+	/**
+	 * @return the number of times a cached statement was reused; each one is a prepare avoided.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return the number of statements actually prepared.
+	 */
+	public synchronized long getPrepareCount() {
+		return prepareCount;
+	}
+
+	/**
+	 * @return the number of statements currently open in this cache.
+	 */
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Closes all cached statements. The cache can still be used afterwards.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement ps : statements.values()) {
+			try {
+				ps.close();
+			} catch (SQLException ignored) {
+				// the statement is dropped anyway
+			}
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Closes all cached statements but not the connection.
+	 */
+	@Override
+	public void close() {
+		clear();
+	}
+}
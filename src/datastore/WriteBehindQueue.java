@@ -0,0 +1,246 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import datamodel.Item;
+import utils.D;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes item updates to a {@link IDAO} on a background thread so that saving an edit doesn't wait for the database.
+ * <p>Updates to the same item are coalesced while they wait, and everything pending is written with one
+ * {@link IDAO#addUpdateItems(java.util.Collection, boolean)} call, i.e. one transaction. The queue holds at most
+ * {@code capacity} distinct items; {@link #update(Item)} blocks while it's full.</p>
+ * <p>Updates are only durable once {@link #flush()} or {@link #close()} returns. A failed write is reported by the
+ * next call to either and its updates are kept; they're written again on the next update, flush or close. Updates
+ * the DAO rejects because the item's new ref belongs to another item are returned by the next flush.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class WriteBehindQueue implements AutoCloseable {
+	private static final int DEFAULT_CAPACITY = 1000;
+	private static final long DEFAULT_DELAY = 200; // ms
+	private final IDAO dao;
+	private final int capacity;
+	private final long delay;
+	// snapshots of the items waiting to be written, by id
+	private final LinkedHashMap<Long, Item> pending;
+	private final Thread worker;
+	private long enqueued; // number of updates accepted so far
+	private long written; // number of updates written so far
+	private long failures; // number of failed writes so far
+	private long batchCount;
+	private boolean flushRequested;
+	private boolean closed;
+	private boolean stalled; // the last write failed; wait for an update, flush or close before trying again
+	private Exception failure;
+	// snapshots whose updates were rejected since the last flush
+	private final List<Item> rejected;
+
+	public WriteBehindQueue(IDAO dao) {
+		this(dao, DEFAULT_CAPACITY, DEFAULT_DELAY);
+	}
+
+	/**
+	 * @param capacity    the maximum number of distinct items waiting to be written
+	 * @param delayMillis how long to wait for more updates before writing; updates that arrive meanwhile are
+	 *                    written in the same transaction
+	 */
+	public WriteBehindQueue(IDAO dao, int capacity, long delayMillis) {
+		D.checkValidation(capacity > 0 && delayMillis >= 0);
+		this.dao = Objects.requireNonNull(dao);
+		this.capacity = capacity;
+		this.delay = delayMillis;
+		this.pending = new LinkedHashMap<>();
+		this.rejected = new ArrayList<>();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "write-behind");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Queues an update of the specified stored item. The item's current values are copied, so it can be edited
+	 * again right away; it's marked clean since its changes now belong to the queue.
+	 *
+	 * @throws IllegalArgumentException if the item isn't stored yet
+	 * @throws IllegalStateException    if the queue is closed
+	 */
+	public synchronized void update(Item item) throws InterruptedException {
+		D.checkValidation(item.getId() >= 0);
+		if (closed) throw new IllegalStateException("write-behind queue is closed");
+		Item snapshot;
+		while ((snapshot = pending.get(item.getId())) == null && pending.size() >= capacity) {
+			wait();
+			if (closed) throw new IllegalStateException("write-behind queue is closed");
+		}
+		if (snapshot == null) {
+			snapshot = new Item(null);
+			snapshot.markClean();
+			pending.put(item.getId(), snapshot);
+		}
+		// copying adds the item's dirty fields to those of the waiting snapshot
+		item.copyTo(snapshot);
+		item.markClean();
+		enqueued++;
+		stalled = false;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until every update queued before this call has been written, or until a write fails.
+	 *
+	 * @return the snapshots of the updates rejected since the last call to this method, i.e. the values that weren't
+	 * stored and the fields they changed
+	 * @throws Exception the failure of a write since the last call to this method
+	 */
+	public List<Item> flush() throws Exception {
+		List<Item> result;
+		synchronized (this) {
+			long target = enqueued;
+			long failed = failures;
+			flushRequested = true;
+			stalled = false;
+			notifyAll();
+			while (written < target && failures == failed) wait();
+			result = new ArrayList<>(rejected);
+			rejected.clear();
+		}
+		rethrow();
+		return result;
+	}
+
+	/**
+	 * @return the number of distinct items waiting to be written
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of transactions written so far
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Writes what's pending and stops the background thread. The DAO is left open. Updates that still can't be
+	 * written are dropped.
+	 *
+	 * @throws Exception the failure of a write since the last flush, or if updates were rejected since the last flush
+	 */
+	@Override
+	public void close() throws Exception {
+		synchronized (this) {
+			closed = true;
+			stalled = false;
+			notifyAll();
+		}
+		worker.join();
+		rethrow();
+		synchronized (this) {
+			if (rejected.isEmpty()) return;
+			List<Long> ids = new ArrayList<>(rejected.size());
+			for (Item i : rejected) ids.add(i.getId());
+			rejected.clear();
+			throw new Exception("updates rejected because their refs already exist, items " + ids);
+		}
+	}
+
+	private synchronized void rethrow() throws Exception {
+		Exception e = failure;
+		failure = null;
+		if (e != null) throw e;
+	}
+
+	private void work() {
+		while (true) {
+			List<Item> snapshots;
+			List<Item> batch;
+			long upTo;
+			boolean flushing;
+			synchronized (this) {
+				try {
+					while ((pending.isEmpty() || stalled) && !closed) wait();
+					if (pending.isEmpty() || stalled) return;
+
+					// let more updates arrive unless someone waits for these
+					long deadline = System.currentTimeMillis() + delay;
+					long left;
+					while (!closed && !flushRequested && pending.size() < capacity && (left = deadline - System.currentTimeMillis()) > 0) {
+						wait(left);
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				snapshots = new ArrayList<>(pending.values());
+				pending.clear();
+				upTo = enqueued;
+				flushing = flushRequested;
+				flushRequested = false;
+				notifyAll();
+			}
+
+			// the DAO marks what it stores clean, so it gets copies and the snapshots keep their changes
+			batch = new ArrayList<>(snapshots.size());
+			for (Item s : snapshots) {
+				Item copy = new Item(null);
+				copy.markClean();
+				s.copyTo(copy);
+				batch.add(copy);
+			}
+			Exception error = null;
+			long processed = 0;
+			try {
+				processed = dao.addUpdateItems(batch, true);
+			} catch (Exception e) {
+				// the DAO rolled back the whole batch, so none of it is stored
+				error = e;
+			}
+
+			synchronized (this) {
+				boolean cut = false;
+				for (int i = 0; i < snapshots.size(); ++i) {
+					if (error != null || i >= processed) {
+						requeue(snapshots.get(i));
+						cut = true;
+					} else if (batch.get(i).isDirty()) {
+						rejected.add(snapshots.get(i));
+					}
+				}
+				if (error != null) {
+					if (failure == null) failure = error;
+					stalled = true;
+					failures++;
+				} else if (cut) {
+					// a cancelled write is resumed before waiters are released
+					flushRequested |= flushing;
+				} else {
+					written = upTo;
+				}
+				batchCount++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Puts an unwritten snapshot back in the queue, under any update of the same item queued meanwhile.
+	 */
+	private void requeue(Item snapshot) {
+		Item newer = pending.remove(snapshot.getId());
+		if (newer != null) newer.copyTo(snapshot);
+		pending.put(snapshot.getId(), snapshot);
+	}
+}
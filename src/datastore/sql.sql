@@ -6,7 +6,8 @@
 --create_table_image
 CREATE TABLE image(
     id IDENTITY(1) NOT NULL UNIQUE,
-    data BINARY
+    data BINARY,
+    hash VARCHAR
 );
 
 --create_table_tag_group
@@ -48,6 +49,78 @@ CREATE TABLE tag_item(
     PRIMARY KEY (itemid, tagid),
     UNIQUE (itemid, tagid)
 );
+
+CREATE INDEX idx_item_name ON item(name, id);
+CREATE INDEX idx_item_dateadd ON item(dateadd, id);
+CREATE INDEX idx_item_datemod ON item(datemod, id);
+CREATE INDEX idx_tag_dateadd ON tag(dateadd, id);
+CREATE INDEX idx_tag_datemod ON tag(datemod, id);
+CREATE UNIQUE INDEX idx_image_hash ON image(hash);
+
+--create_table_meta
+CREATE TABLE meta(
+    name VARCHAR PRIMARY KEY,
+    val VARCHAR
+);
+
+--create_table_import_checkpoint
+CREATE TABLE import_checkpoint(
+    source VARCHAR PRIMARY KEY,
+    fingerprint VARCHAR NOT NULL,
+    position BIGINT NOT NULL,
+    datemod TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL NULL_TO_DEFAULT
+);
+--end
+
+--select_schema_version
+SELECT CAST(val AS INT) FROM meta WHERE name = 'schema_version';
+--end
+
+--update_schema_version
+MERGE INTO meta(name, val) KEY(name) VALUES ('schema_version', CAST(? AS VARCHAR));
+--end
+
+--migrate_db_2
+CREATE INDEX IF NOT EXISTS idx_item_name ON item(name, id);
+CREATE INDEX IF NOT EXISTS idx_item_dateadd ON item(dateadd, id);
+CREATE INDEX IF NOT EXISTS idx_item_datemod ON item(datemod, id);
+CREATE INDEX IF NOT EXISTS idx_tag_dateadd ON tag(dateadd, id);
+CREATE INDEX IF NOT EXISTS idx_tag_datemod ON tag(datemod, id);
+CREATE TABLE IF NOT EXISTS meta(
+    name VARCHAR PRIMARY KEY,
+    val VARCHAR
+);
+--end
+
+--migrate_db_3
+ALTER TABLE image ADD COLUMN IF NOT EXISTS hash VARCHAR;
+UPDATE image SET hash = CAST(HASH('SHA256', data, 1) AS VARCHAR) WHERE data IS NOT NULL;
+UPDATE item SET imageid = (
+    SELECT MIN(copy.id) FROM image INNER JOIN image copy ON copy.hash = image.hash WHERE image.id = item.imageid)
+WHERE imageid IN (SELECT id FROM image WHERE hash IS NOT NULL);
+DELETE FROM image WHERE hash IS NOT NULL AND id NOT IN (SELECT MIN(id) FROM image GROUP BY hash);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_image_hash ON image(hash);
+--end
+
+--migrate_db_4
+CREATE TABLE IF NOT EXISTS import_checkpoint(
+    source VARCHAR PRIMARY KEY,
+    fingerprint VARCHAR NOT NULL,
+    position BIGINT NOT NULL,
+    datemod TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL NULL_TO_DEFAULT
+);
+--end
+
+--select_import_checkpoint
+SELECT * FROM import_checkpoint WHERE source = ?;
+--end
+
+--merge_import_checkpoint
+MERGE INTO import_checkpoint(source, fingerprint, position, datemod) KEY(source) VALUES (?, ?, ?, CURRENT_TIMESTAMP);
+--end
+
+--remove_import_checkpoint
+DELETE FROM import_checkpoint WHERE source = ?;
 --end
 
 --clear_db
@@ -58,6 +131,83 @@ DROP ALL OBJECTS;
 SCRIPT TO ? COMPRESSION DEFLATE CIPHER AES PASSWORD ? CHARSET 'UTF-8';
 --end
 
+--select_tables
+SELECT table_name FROM information_schema.tables WHERE table_schema = 'PUBLIC' AND table_type = 'TABLE' AND table_name <> 'CHANGE_LOG' ORDER BY table_name;
+--end
+
+--select_rows_after
+SELECT _ROWID_, * FROM TABLE_NAME WHERE _ROWID_ > ? ORDER BY _ROWID_ LIMIT ?;
+--end
+
+--delete_table_rows
+DELETE FROM TABLE_NAME;
+--end
+
+--set_referential_integrity
+SET REFERENTIAL_INTEGRITY ?;
+--end
+
+--set_cache_size
+SET CACHE_SIZE ?;
+--end
+
+--set_write_delay
+SET WRITE_DELAY ?;
+--end
+
+--set_default_lock_timeout
+SET DEFAULT_LOCK_TIMEOUT ?;
+--end
+
+--set_lock_timeout
+SET LOCK_TIMEOUT ?;
+--end
+
+--set_undo_log
+SET UNDO_LOG ?;
+--end
+
+--script_db
+SCRIPT TO ? COMPRESSION LZF;
+--end
+
+--runscript_db
+RUNSCRIPT FROM ? COMPRESSION LZF;
+--end
+
+--create_change_log
+CREATE TABLE IF NOT EXISTS change_log(
+    seq IDENTITY NOT NULL,
+    tbl VARCHAR NOT NULL,
+    old_row ARRAY,
+    new_row ARRAY
+);
+--end
+
+--create_change_trigger
+CREATE TRIGGER IF NOT EXISTS change_TABLE AFTER INSERT, UPDATE, DELETE ON TABLE FOR EACH ROW CALL "datastore.ChangeLog$Capture";
+--end
+
+--select_changes
+SELECT seq, tbl, old_row, new_row FROM change_log ORDER BY seq LIMIT ?;
+--end
+
+--select_last_change
+SELECT COALESCE(MAX(seq), 0) FROM change_log;
+--end
+
+--remove_changes
+DELETE FROM change_log WHERE seq <= ?;
+--end
+
+--checkpoint_db
+CHECKPOINT SYNC;
+--end
+
+--export_db
+BACKUP TO ?;
+--end
+
 --restore_db
 RUNSCRIPT FROM ? COMPRESSION DEFLATE CIPHER AES PASSWORD ? CHARSET 'UTF-8';
 --end
@@ -66,6 +216,10 @@ RUNSCRIPT FROM ? COMPRESSION DEFLATE CIPHER AES PASSWORD ? CHARSET 'UTF-8';
 SELECT * FROM image WHERE id = ?;
 --end
 
+--select_images_by_id
+SELECT image.* FROM TABLE(X BIGINT = ?) ids INNER JOIN image ON image.id = ids.X;
+--end
+
 --select_item_by_id
 SELECT * FROM item WHERE id = ?;
 --end
@@ -82,14 +236,38 @@ SELECT * FROM item;
 SELECT * FROM item LIMIT ? OFFSET ?;
 --end
 
+--select_items_first_page
+SELECT * FROM item ORDER BY COLUMN, id LIMIT ?;
+--end
+
+--select_items_next_page
+SELECT * FROM item WHERE COLUMN >= ? AND (COLUMN > ? OR id > ?) ORDER BY COLUMN, id LIMIT ?;
+--end
+
+--select_items_after
+SELECT * FROM item WHERE id > ? ORDER BY id LIMIT ?;
+--end
+
 --select_items_by_id
-SELECT * FROM item WHERE id IN (CSV);
+SELECT item.* FROM TABLE(X BIGINT = ?) ids INNER JOIN item ON item.id = ids.X;
 --end
 
 --select_item_tags
 SELECT * FROM tag WHERE id IN (SELECT tagid FROM tag_item WHERE itemid = ?);
 --end
 
+--select_item_tag_ids
+SELECT tag.id AS id, tag.name AS name FROM tag_item INNER JOIN tag ON tag.id = tag_item.tagid WHERE tag_item.itemid = ?;
+--end
+
+--select_tags_of_items
+SELECT tag_item.itemid AS itemid, tag.* FROM TABLE(X BIGINT = ?) ids INNER JOIN tag_item ON tag_item.itemid = ids.X INNER JOIN tag ON tag.id = tag_item.tagid;
+--end
+
+--select_tags_of_all_items
+SELECT tag_item.itemid AS itemid, tag.* FROM tag_item INNER JOIN tag ON tag.id = tag_item.tagid;
+--end
+
 --select_tags
 SELECT * FROM tag;
 --end
@@ -97,8 +275,21 @@ SELECT * FROM tag;
 --select_tags_2
 SELECT * FROM tag LIMIT ? OFFSET ?;
 --end
+
+--select_tags_first_page
+SELECT * FROM tag ORDER BY COLUMN, id LIMIT ?;
+--end
+
+--select_tags_next_page
+SELECT * FROM tag WHERE COLUMN >= ? AND (COLUMN > ? OR id > ?) ORDER BY COLUMN, id LIMIT ?;
+--end
+
+--select_tags_after
+SELECT * FROM tag WHERE id > ? ORDER BY id LIMIT ?;
+--end
+
 --select_tags_by_id
-SELECT * FROM tag WHERE id IN (CSV);
+SELECT tag.* FROM TABLE(X BIGINT = ?) ids INNER JOIN tag ON tag.id = ids.X;
 --end
 
 --select_tag_by_id
@@ -141,67 +332,53 @@ SELECT * FROM item WHERE id IN (
 --end
 
 --insert_image
-INSERT INTO image(data)
-    SELECT
-        ? AS data
-    WHERE NOT EXISTS (SELECT id FROM image WHERE id = ?);
+INSERT INTO image(data, hash) VALUES (?, ?);
+--end
+
+--select_image_id_by_hash
+SELECT id FROM image WHERE hash = ?;
+--end
+
+--merge_tag_group
+MERGE INTO tag_group(name) KEY(name) VALUES (TRIM(BOTH FROM ?));
 --end
 
---insert_tag_group
-INSERT INTO tag_group(name)
-	SELECT name FROM
-		(SELECT
-			TRIM(BOTH FROM ?) AS name)
-		AS entry
-	WHERE NOT EXISTS (SELECT id FROM tag_group WHERE name = entry.name);
+--select_tag_group_id_by_name
+SELECT id FROM tag_group WHERE name = TRIM(BOTH FROM ?);
 --end
 
 --insert_item
 INSERT INTO item(name, info, ref, privy, username, password, dateadd, datemod, imageid)
-SELECT * FROM
-    (SELECT
-        TRIM(BOTH FROM ?) AS name,
-	    TRIM(BOTH FROM ?) AS info,
-		TRIM(BOTH FROM ?) AS ref,
-		CAST(? AS BOOLEAN) AS privy,
-		TRIM(BOTH FROM ?) AS username,
-		CAST(? AS VARCHAR) AS password,
-		CAST(? AS TIMESTAMP) dateadd,
-		CAST(? AS TIMESTAMP) AS datemod,
-		CAST(? AS BIGINT) AS imageid)
-	AS entry
-WHERE NOT EXISTS (SELECT id FROM item WHERE ref = entry.ref);
+VALUES (TRIM(BOTH FROM ?), TRIM(BOTH FROM ?), TRIM(BOTH FROM ?), ?, TRIM(BOTH FROM ?), ?, ?, ?, ?);
+--end
+
+--insert_item_with_id
+INSERT INTO item(id, name, info, ref, privy, username, password, dateadd, datemod, imageid)
+VALUES (?, TRIM(BOTH FROM ?), TRIM(BOTH FROM ?), TRIM(BOTH FROM ?), ?, TRIM(BOTH FROM ?), ?, ?, ?, ?);
+--end
+
+--select_last_item_id
+SELECT GREATEST(COALESCE(MAX(id), 0), (
+    SELECT CURRENT_VALUE FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = (
+        SELECT SEQUENCE_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'ITEM' AND COLUMN_NAME = 'ID')))
+FROM item;
 --end
 
 --insert_tag
 INSERT INTO tag(name, color, dateadd, datemod, parentid, groupid)
-SELECT * FROM
-	(SELECT
-        TRIM(BOTH FROM ?) AS name,
-        TRIM(BOTH FROM ?) AS color,
-        CAST(? AS TIMESTAMP) AS dateadd,
-        CAST(? AS TIMESTAMP) AS datemod,
-        CAST(? AS BIGINT) AS parentid,
-        CAST(? AS BIGINT) AS groupid)
-    AS entry
-WHERE NOT EXISTS (SELECT id FROM tag WHERE name = entry.name);
---end
-
---insert_tag_item_map
-INSERT INTO tag_item (itemid, tagid) values(?, (SELECT id FROM tag WHERE name = ?));
---end
-
---update_item
-UPDATE item SET
-    name = TRIM(BOTH FROM ?),
-    info = TRIM(BOTH FROM ?),
-    ref = TRIM(BOTH FROM ?),
-    privy = ?,
-    username = TRIM(BOTH FROM ?),
-    password = ?,
-    dateadd = ?,
-    datemod = ?,
-    imageid = ?
+VALUES (TRIM(BOTH FROM ?), TRIM(BOTH FROM ?), ?, ?, ?, ?);
+--end
+
+--insert_tag_item
+INSERT INTO tag_item (itemid, tagid) VALUES (?, ?);
+--end
+
+--select_tag_ids_by_name
+SELECT tag.id, tag.name FROM TABLE(N VARCHAR = ?) names INNER JOIN tag ON tag.name = names.N;
+--end
+
+--update_item_columns
+UPDATE item SET ASSIGNMENTS
 WHERE id = ?
 AND NOT EXISTS (
 	SELECT id
@@ -212,14 +389,8 @@ AND NOT EXISTS (
 );
 --end
 
---update_tag
-UPDATE tag SET
-    name = TRIM(BOTH FROM ?),
-    color = TRIM(BOTH FROM ?),
-    dateadd = ?,
-    datemod = ?,
-    parentid = ?,
-    groupid = ?
+--update_tag_columns
+UPDATE tag SET ASSIGNMENTS
 WHERE id = ?
 AND NOT EXISTS (
 	SELECT id
@@ -234,24 +405,24 @@ AND NOT EXISTS (
 DELETE FROM item WHERE id = ?;
 --end
 
---remove_item_tags
-DELETE FROM tag_item WHERE itemid = ?;
+--remove_item_tag
+DELETE FROM tag_item WHERE itemid = ? AND tagid = ?;
+--end
+
+--remove_unused_images
+DELETE FROM image WHERE NOT EXISTS (SELECT imageid FROM item WHERE imageid = image.id);
 --end
 
 --remove_tag
 DELETE FROM tag WHERE id = ?;
 --end
 
---remove_tag_items
-DELETE FROM item WHERE id IN (SELECT itemid FROM tag_item WHERE tagid = ?);
+--select_tag_item_ids
+SELECT itemid FROM tag_item WHERE tagid = ? LIMIT ?;
 --end
 
 --remove_unused_tags
-DELETE FROM tag WHERE id NOT IN (SELECT DISTINCT tagid FROM tag_item);
---end
-
---remove_items
-DELETE FROM item WHERE id IN (CSV);
+DELETE FROM tag WHERE NOT EXISTS (SELECT tagid FROM tag_item WHERE tagid = tag.id) LIMIT ?;
 --end
 
 --replace_tag
@@ -263,7 +434,7 @@ SELECT COUNT(id) AS TOTAL FROM item;
 --end
 
 --count_untagged_items
-SELECT COUNT(id) AS TOTAL FROM item WHERE id NOT IN (SELECT DISTINCT itemid FROM tag_item);
+SELECT COUNT(id) AS TOTAL FROM item WHERE NOT EXISTS (SELECT itemid FROM tag_item WHERE itemid = item.id);
 --end
 
 --count_tags
@@ -274,10 +445,18 @@ SELECT COUNT(id) AS TOTAL FROM tag;
 SELECT COUNT(itemid) AS TOTAL FROM tag_item WHERE tagid = ?;
 --end
 
+--count_items_of_tags
+SELECT ids.X AS tagid, COUNT(tag_item.itemid) AS TOTAL FROM TABLE(X BIGINT = ?) ids INNER JOIN tag_item ON tag_item.tagid = ids.X GROUP BY ids.X;
+--end
+
+--count_items_of_all_tags
+SELECT tagid, COUNT(itemid) AS TOTAL FROM tag_item GROUP BY tagid;
+--end
+
 --count_item_tags
 SELECT COUNT(tagid) AS TOTAL FROM tag_item WHERE itemid = ?;
 --end
 
 --count_unused_tags
-SELECT COUNT(id) AS TOTAL FROM tag WHERE id NOT IN (SELECT DISTINCT tagid FROM tag_item);
+SELECT COUNT(id) AS TOTAL FROM tag WHERE NOT EXISTS (SELECT tagid FROM tag_item WHERE tagid = tag.id);
 --end
@@ -9,6 +9,7 @@ import datamodel.Item;
 import datamodel.Tag;
 import utils.Utils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -196,6 +197,28 @@ public class ImportConfigs {
 		return oldItem;
 	}
 
+	/**
+	 * @return a hash of all the settings; equal configs have equal fingerprints
+	 */
+	public String fingerprint() {
+		StringBuilder str = new StringBuilder();
+		for (Field f : Field.values()) {
+			str.append(f).append('=').append(skipFields.get(f)).append(',').append(defaults.get(f)).append('\n');
+		}
+		for (CollisionOption co : CollisionOption.values()) {
+			str.append(co).append('=').append(collisionOptions.get(co)).append('\n');
+		}
+		str.append(sortedNames(tags)).append('\n').append(sortedNames(collisionTags));
+		return Utils.getInstance().sha256Hex(str.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<String> sortedNames(Collection<Tag> tags) {
+		List<String> names = new ArrayList<>(tags.size());
+		for (Tag t : tags) names.add(t.getName());
+		Collections.sort(names);
+		return names;
+	}
+
 	public void process(Item item) {
 		if (skipFields.get(Field.name)) item.setName(getDefaultName());
 		if (skipFields.get(Field.info)) item.setInfo(getDefaultInfo());
@@ -0,0 +1,318 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package services.importers;
+
+import datamodel.Item;
+import datastore.IDAO;
+import datastore.ImportCheckpoint;
+import utils.D;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Imports items through a three stage pipeline: the calling thread reads raw records, a number of worker threads
+ * parse them into items and apply {@link ImportConfigs#process(Item)}, and a single writer thread resolves collisions
+ * and stores the results in batches. Collisions are resolved in the writer so that an item whose ref repeats in the
+ * input, or is already stored, is resolved against its latest version rather than against the stored one.
+ * <p>The stages are connected by bounded queues, so a slow stage holds back the ones before it and memory use doesn't
+ * depend on the size of the input. Items are not necessarily written in the order of their records.</p>
+ * <p>An import of a named source saves a checkpoint in the transaction of every batch: the number of records from the
+ * start of the source that are stored. Running the same source with the same configs again skips those records, so an
+ * interrupted import loses at most one batch. The checkpoint is removed once the import completes.</p>
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class ImportEngine {
+	private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final long POLL_MILLIS = 100;
+	// marks the end of a queue
+	private static final Object END = new Object();
+	private final IDAO dao;
+	private final ImportConfigs configs;
+	private final int threads;
+	private final int queueCapacity;
+	private final int batchSize;
+
+	/**
+	 * Turns one raw record into an item. Called concurrently from several threads.
+	 */
+	public interface RecordParser<T> {
+		/**
+		 * @return the parsed item, or null to skip the record
+		 */
+		public Item parse(T record) throws Exception;
+	}
+
+	/**
+	 * Uses a worker per available processor.
+	 */
+	public ImportEngine(IDAO dao, ImportConfigs configs) {
+		this(dao, configs, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param threads       the number of parsing threads
+	 * @param queueCapacity the maximum number of records, and of parsed items, waiting for the next stage
+	 * @param batchSize     the number of items the writer stores at once
+	 */
+	public ImportEngine(IDAO dao, ImportConfigs configs, int threads, int queueCapacity, int batchSize) {
+		D.checkValidation(threads > 0 && queueCapacity > 0 && batchSize > 0);
+		this.dao = Objects.requireNonNull(dao);
+		this.configs = Objects.requireNonNull(configs);
+		this.threads = threads;
+		this.queueCapacity = queueCapacity;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Imports the items of the specified importer. Reading stays on the calling thread; processing runs in parallel.
+	 *
+	 * @return the number of items added or updated
+	 */
+	public long run(final IImporter importer) throws Exception {
+		Iterator<Item> items = new Iterator<Item>() {
+			@Override
+			public boolean hasNext() {
+				try {
+					return importer.hasNext();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public Item next() {
+				try {
+					return importer.nextItem();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return run(items, new RecordParser<Item>() {
+			@Override
+			public Item parse(Item record) {
+				return record;
+			}
+		});
+	}
+
+	/**
+	 * Reads the records on the calling thread and parses them on the worker threads.
+	 *
+	 * @return the number of items added or updated
+	 * @throws Exception the first failure of any stage; the import stops at it, but batches already written are kept
+	 */
+	public <T> long run(Iterator<T> records, RecordParser<T> parser) throws Exception {
+		return run(null, records, parser);
+	}
+
+	/**
+	 * Same as {@link #run(java.util.Iterator, RecordParser)}, but resumes from the checkpoint of the specified source
+	 * and saves a new one with every batch. The records of a source must come in the same order on every run.
+	 *
+	 * @param source identifies the input, e.g. its path; null to import without checkpoints
+	 */
+	public <T> long run(final String source, Iterator<T> records, final RecordParser<T> parser) throws Exception {
+		final String fingerprint = configs.fingerprint();
+		long start = 0;
+		if (source != null) {
+			ImportCheckpoint checkpoint = dao.getImportCheckpoint(source);
+			if (checkpoint != null && checkpoint.getFingerprint().equals(fingerprint)) start = checkpoint.getPosition();
+		}
+		for (long i = 0; i < start && records.hasNext(); ++i) records.next();
+		final long first = start;
+
+		final BlockingQueue<Object> raw = new ArrayBlockingQueue<>(queueCapacity);
+		final BlockingQueue<Object> parsed = new ArrayBlockingQueue<>(queueCapacity);
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final AtomicInteger activeWorkers = new AtomicInteger(threads);
+		final long[] written = {0};
+
+		List<Thread> stages = new ArrayList<>(threads + 1);
+		for (int i = 0; i < threads; ++i) {
+			stages.add(new Thread(new Runnable() {
+				@Override
+				@SuppressWarnings("unchecked")
+				public void run() {
+					try {
+						Object next;
+						while ((next = take(raw, failure)) != END) {
+							Entry record = (Entry) next;
+							Item item = parser.parse((T) record.value);
+							if (item != null) configs.process(item);
+							put(parsed, new Entry(record.seq, item), failure);
+						}
+						if (activeWorkers.decrementAndGet() == 0) put(parsed, END, failure);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "import-worker-" + i));
+		}
+		stages.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					written[0] = write(parsed, failure, source, fingerprint, first);
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		}, "import-writer"));
+		for (Thread t : stages) t.start();
+
+		try {
+			for (long seq = start; records.hasNext() && failure.get() == null; ++seq) {
+				put(raw, new Entry(seq, records.next()), failure);
+			}
+			for (int i = 0; i < threads; ++i) put(raw, END, failure);
+		} catch (Exception e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			for (Thread t : stages) t.join();
+		}
+
+		Exception e = failure.get();
+		if (e != null) throw e;
+		if (source != null) dao.removeImportCheckpoint(source);
+		return written[0];
+	}
+
+	/**
+	 * Resolves a processed item with the item of the same ref in the current batch or, failing that, with the stored
+	 * one. Earlier batches are stored by then, so every record meets the latest version of its item.
+	 *
+	 * @param batch the items of the current batch by ref
+	 * @param other the new items of the current batch that have no ref
+	 */
+	private void resolve(Item item, Map<String, Item> batch, List<Item> other) throws Exception {
+		String ref = item.getRef();
+		Item existing = ref == null ? null : batch.get(ref);
+		if (ref != null && existing == null) {
+			Item stored = new Item(null);
+			if (dao.itemExist(ref, stored)) existing = stored;
+		}
+		if (existing != null) {
+			batch.put(ref, configs.resolve(existing, item));
+			return;
+		}
+		// ids of other libraries mean nothing here
+		item.setId(-1);
+		if (ref == null) other.add(item);
+		else batch.put(ref, item);
+	}
+
+	/**
+	 * Stores new items and updates the stored items that were resolved with changes, once per batch of records.
+	 *
+	 * @param source the source to save checkpoints for, or null
+	 * @param first  the number of the first record of this run
+	 * @return the number of items added or updated
+	 */
+	private long write(BlockingQueue<Object> parsed, AtomicReference<Exception> failure, String source, String fingerprint, long first) throws Exception {
+		long count = 0;
+		Map<String, Item> batch = new LinkedHashMap<>(batchSize * 2);
+		List<Item> other = new ArrayList<>();
+		// the records received so far; all records before 'done' are received
+		BitSet received = new BitSet();
+		long base = first;
+		long done = first;
+		int pending = 0;
+		Object next;
+		while ((next = take(parsed, failure)) != END) {
+			Entry entry = (Entry) next;
+			received.set((int) (entry.seq - base));
+			done = base + received.nextClearBit((int) (done - base));
+			Item item = (Item) entry.value;
+			if (item != null) resolve(item, batch, other);
+			if (++pending < batchSize) continue;
+
+			ImportCheckpoint checkpoint = source == null ? null : new ImportCheckpoint(source, fingerprint, done);
+			count += flush(batch, other, checkpoint);
+			pending = 0;
+			// forget the records before 'done', so the bit set only spans those still out of order
+			received = received.get((int) (done - base), Math.max(received.length(), (int) (done - base)));
+			base = done;
+		}
+		ImportCheckpoint checkpoint = source == null ? null : new ImportCheckpoint(source, fingerprint, done);
+		return count + flush(batch, other, checkpoint);
+	}
+
+	/**
+	 * Writes and clears the items of a batch. The checkpoint is saved in the same transaction.
+	 *
+	 * @throws InterruptedException if the write was cancelled, in which case nothing of the batch is stored
+	 */
+	private long flush(Map<String, Item> batch, List<Item> other, ImportCheckpoint checkpoint) throws Exception {
+		List<Item> inserts = new ArrayList<>(other);
+		List<Item> updates = new ArrayList<>();
+		for (Item i : batch.values()) {
+			if (i.getId() < 0) inserts.add(i);
+			else if (i.isDirty()) updates.add(i);
+		}
+		if (!updates.isEmpty() || !inserts.isEmpty() || checkpoint != null) {
+			if (!dao.addUpdateItems(updates, inserts, checkpoint)) throw new InterruptedException("import cancelled");
+		}
+		long count = updates.size();
+		for (Item i : inserts) {
+			// the ones whose ref was stored by someone else meanwhile are left unstored
+			if (i.getId() >= 0) count++;
+		}
+		batch.clear();
+		other.clear();
+		return count;
+	}
+
+	/**
+	 * A record or its parsed item along with the number of the record.
+	 */
+	private static final class Entry {
+		final long seq;
+		final Object value;
+
+		Entry(long seq, Object value) {
+			this.seq = seq;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Waits for room in the queue, giving up once another stage has failed.
+	 */
+	private static void put(BlockingQueue<Object> queue, Object o, AtomicReference<Exception> failure) throws InterruptedException {
+		while (!queue.offer(o, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (failure.get() != null) throw new InterruptedException("import failed");
+		}
+	}
+
+	/**
+	 * Waits for the next element of the queue, giving up once another stage has failed.
+	 */
+	private static Object take(BlockingQueue<Object> queue, AtomicReference<Exception> failure) throws InterruptedException {
+		Object o;
+		while ((o = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+			if (failure.get() != null) throw new InterruptedException("import failed");
+		}
+		return o;
+	}
+}
@@ -0,0 +1,117 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package utils;
+
+/**
+ * A map of primitive long keys to primitive long values using open addressing, so neither keys nor values are boxed.
+ * This class is not thread-safe.
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class LongLongMap {
+	private static final float LOAD_FACTOR = 0.5f;
+	private long[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int size;
+
+	public LongLongMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize the number of mappings to make room for
+	 */
+	public LongLongMap(int expectedSize) {
+		D.checkValidation(expectedSize >= 0);
+		int capacity = Integer.highestOneBit(Math.max(4, (int) Math.ceil(expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+	}
+
+	/**
+	 * @return the value mapped to the specified key, or {@code absent} if there is none
+	 */
+	public long get(long key, long absent) {
+		int i = indexOf(key);
+		return used[i] ? values[i] : absent;
+	}
+
+	public boolean containsKey(long key) {
+		return used[indexOf(key)];
+	}
+
+	public void put(long key, long value) {
+		int i = indexOf(key);
+		values[i] = value;
+		if (used[i]) return;
+		keys[i] = key;
+		used[i] = true;
+		if (++size > keys.length * LOAD_FACTOR) grow();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the keys in no particular order
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) result[n++] = keys[i];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the slot of the key, or the free slot where it would go
+	 */
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (used[i] && keys[i] != key) i = (i + 1) & mask;
+		return i;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		keys = new long[oldKeys.length << 1];
+		values = new long[keys.length];
+		used = new boolean[keys.length];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (!oldUsed[i]) continue;
+			int j = indexOf(oldKeys[i]);
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+			used[j] = true;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (!used[i]) continue;
+			if (str.length() > 1) str.append(", ");
+			str.append(keys[i]).append('=').append(values[i]);
+		}
+		return str.append('}').toString();
+	}
+}
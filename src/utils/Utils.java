@@ -5,6 +5,8 @@
 package utils;
 
 import java.nio.file.FileSystems;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.Base64;
 import java.util.Locale;
@@ -51,6 +53,23 @@ public class Utils {
 	public byte[] decodeBase64(String data) {
 		return Base64.getDecoder().decode(data);
 	}
+
+	/**
+	 * @return the SHA-256 digest of the specified data in lower case hex
+	 */
+	public String sha256Hex(byte[] data) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JRE has SHA-256
+		}
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : md.digest(data)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
 	// URL
 
 	public String urlGetDomainName(String url) {
@@ -0,0 +1,109 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A thread-safe map that holds any number of values per key, weakly. Once a value is no longer referenced elsewhere,
+ * it may be garbage collected and dropped from its key.
+ * <p/>
+ * Author: Anas H. Sulaiman
+ */
+public class WeakValueMultimap<K, V> {
+	private final Map<K, List<Entry<K, V>>> map;
+	private final ReferenceQueue<V> queue;
+
+	public WeakValueMultimap() {
+		map = new HashMap<>();
+		queue = new ReferenceQueue<>();
+	}
+
+	/**
+	 * @return the last value added to the specified key that is still alive, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		expunge();
+		List<Entry<K, V>> entries = map.get(key);
+		if (entries == null) return null;
+		for (int i = entries.size() - 1; i >= 0; --i) {
+			V v = entries.get(i).get();
+			if (v != null) return v;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the specified value to the values of the specified key, unless it's already one of them. The values of a
+	 * key are kept in the order they were added.
+	 *
+	 * @throws NullPointerException if the value is null
+	 */
+	public synchronized void put(K key, V value) {
+		Objects.requireNonNull(value);
+		expunge();
+		List<Entry<K, V>> entries = map.get(key);
+		if (entries == null) map.put(key, (entries = new ArrayList<>(1)));
+		for (Entry<K, V> e : entries) {
+			if (e.get() == value) return;
+		}
+		entries.add(new Entry<>(key, value, queue));
+	}
+
+	/**
+	 * Removes the specified value from the values of the specified key.
+	 *
+	 * @return true if the value was removed
+	 */
+	public synchronized boolean remove(K key, V value) {
+		expunge();
+		List<Entry<K, V>> entries = map.get(key);
+		if (entries == null) return false;
+		for (Iterator<Entry<K, V>> it = entries.iterator(); it.hasNext(); ) {
+			if (it.next().get() == value) {
+				it.remove();
+				if (entries.isEmpty()) map.remove(key);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of keys with at least one value, including values that have been collected but not yet
+	 * dropped
+	 */
+	public synchronized int size() {
+		expunge();
+		return map.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void expunge() {
+		Reference<? extends V> r;
+		while ((r = queue.poll()) != null) {
+			Entry<K, V> e = (Entry<K, V>) r;
+			List<Entry<K, V>> entries = map.get(e.key);
+			if (entries != null && entries.remove(e) && entries.isEmpty()) map.remove(e.key);
+		}
+	}
+
+	private static class Entry<K, V> extends WeakReference<V> {
+		final K key;
+
+		Entry(K key, V value, ReferenceQueue<V> queue) {
+			super(value, queue);
+			this.key = key;
+		}
+	}
+}
@@ -1,4 +1,3 @@
-import datamodel.Image;
 import datamodel.Item;
 import datamodel.Tag;
 import datamodel.TagGroup;
@@ -7,24 +6,11 @@ import org.junit.Test;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 
-import static org.junit.Assert.assertEquals;
-
 /**
  * Author: Anas H. Sulaiman 
  */
 public class MiscTest {
 
-	@Test
-	public void testImageCaching() {
-		Image img = new Image();
-		img.setId(50);
-		Image i = Image.getIfExists(50);
-		assertEquals(50, i.getId());
-		img.setId(4);
-		i = Image.getIfExists(4);
-		assertEquals(4, i.getId());
-	}
-
 	// ignored
 	public void testStringReps() {
 		TagGroup tg = new TagGroup();
@@ -0,0 +1,58 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datamodel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman 
+ */
+public class ImageTest {
+
+	@Test
+	public void testLazyLoading() {
+		final int[] loads = {0};
+		Image img = new Image(7, new Image.DataLoader() {
+			@Override
+			public byte[] loadData(long id) throws Exception {
+				loads[0]++;
+				return new byte[]{(byte) id};
+			}
+		});
+
+		// a handle is not null and holds nothing until its data is requested
+		assertFalse(img.isNull());
+		assertFalse(img.isLoaded());
+		assertEquals(0, loads[0]);
+
+		assertArrayEquals(new byte[]{7}, img.getData());
+		assertArrayEquals(new byte[]{7}, img.getData());
+		assertTrue(img.isLoaded());
+		assertEquals(1, loads[0]);
+
+		// setting data replaces the handle
+		img = new Image(8, new Image.DataLoader() {
+			@Override
+			public byte[] loadData(long id) throws Exception {
+				throw new Exception("should not be called");
+			}
+		});
+		img.setData(new byte[]{1});
+		assertTrue(img.isLoaded());
+		assertArrayEquals(new byte[]{1}, img.getData());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFailedLoading() {
+		new Image(9, new Image.DataLoader() {
+			@Override
+			public byte[] loadData(long id) throws Exception {
+				throw new Exception("not found");
+			}
+		}).getData();
+	}
+}
@@ -7,8 +7,10 @@ package datamodel;
 import org.junit.Test;
 
 import java.sql.Timestamp;
+import java.util.EnumSet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -35,6 +37,29 @@ public class ItemTest {
 		assertTrue(item.getDateadd().compareTo(item.getDatemod()) == 0);
 	}
 
+	@Test
+	public void testDirtyFields() {
+		Item item = new Item("AHS", "http://ahs.pw");
+		// a new item has everything to write
+		assertTrue(item.isDirty(Field.name));
+		item.markClean();
+		assertFalse(item.isDirty());
+
+		// setting the same values changes nothing
+		item.setName(" AHS ");
+		item.setRef("http://ahs.pw");
+		item.setPrivy(false);
+		assertFalse(item.isDirty());
+
+		item.setPrivy(true);
+		item.addTag(new Tag("dirty"));
+		assertEquals(EnumSet.of(Field.privy, Field.tags, Field.datemod), item.getDirtyFields());
+
+		item.markClean(Field.tags);
+		assertFalse(item.isDirty(Field.tags));
+		assertTrue(item.isDirty(Field.privy));
+	}
+
 	@Test
 	public void testRefType() {
 		Item item = new Item("");
@@ -8,7 +8,7 @@ import org.junit.Test;
 
 import java.sql.Timestamp;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 /**
  * Author: Anas H. Sulaiman 
@@ -80,4 +80,25 @@ public class TagTest {
 		} catch (IllegalArgumentException e) {
 		}
 	}
+
+	@Test
+	public void testGetIfExists() {
+		Tag tag = new Tag("identity_map");
+		assertSame(tag, Tag.getIfExists("Identity_Map"));
+		assertNull(Tag.getIfExists(424242));
+
+		tag.setId(424242);
+		assertSame(tag, Tag.getIfExists(424242));
+
+		// the latest tag with a name is the one found, but the earlier one stays registered
+		Tag copy = new Tag(424243, "IDENTITY_MAP");
+		assertSame(copy, Tag.getIfExists("identity_map"));
+		assertSame(copy, Tag.getIfExists(424243));
+		copy.setName("identity_map2");
+		assertSame(copy, Tag.getIfExists("identity_map2"));
+		assertSame(tag, Tag.getIfExists("identity_map"));
+
+		tag.setName("identity_map3");
+		assertNull(Tag.getIfExists("identity_map"));
+	}
 }
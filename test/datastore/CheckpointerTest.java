@@ -0,0 +1,62 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import datamodel.Item;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman
+ */
+public class CheckpointerTest {
+	IDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		dao = new H2DAO(System.getProperty("user.home") + File.separator + "tb2cptest");
+		dao.open(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.close();
+		Files.deleteIfExists(Paths.get(dao.getPath()));
+	}
+
+	@Test
+	public void testThreshold() throws Exception {
+		Checkpointer checkpointer = new Checkpointer(dao, 600000, 10);
+		assertTrue(dao.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+		Thread.sleep(1500);
+		// a few writes are below the threshold and the interval is far off
+		assertEquals(0, checkpointer.getCheckpointCount());
+
+		for (int i = 0; i < 10; ++i) assertTrue(dao.addUpdateItem(new Item("Google" + i, "http://google.com/" + i), false));
+		for (int i = 0; i < 50 && checkpointer.getCheckpointCount() == 0; ++i) Thread.sleep(100);
+		assertTrue(checkpointer.getCheckpointCount() > 0);
+		checkpointer.close();
+	}
+
+	@Test
+	public void testInterval() throws Exception {
+		Checkpointer checkpointer = new Checkpointer(dao, 500, 1000);
+		Thread.sleep(1200);
+		// nothing to write
+		assertEquals(0, checkpointer.getCheckpointCount());
+
+		assertTrue(dao.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+		for (int i = 0; i < 50 && checkpointer.getCheckpointCount() == 0; ++i) Thread.sleep(100);
+		assertEquals(1, checkpointer.getCheckpointCount());
+		checkpointer.close();
+	}
+}
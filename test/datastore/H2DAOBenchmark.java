@@ -0,0 +1,269 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import datamodel.Image;
+import datamodel.Item;
+import datamodel.Tag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import utils.LongLongMap;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Not part of the regular test run. The number of items can be set with {@code -Dtb2.bench.items=N}.
+ * <p/>
+ * Author: Anas H. Sulaiman 
+ */
+public class H2DAOBenchmark {
+	static final int ITEMS = Integer.getInteger("tb2.bench.items", 5000);
+	static final int TAGS_PER_ITEM = 3;
+
+	String filePath;
+	H2DAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		filePath = System.getProperty("user.home") + File.separator + "tb2bench";
+		dao = new H2DAO(filePath);
+		dao.open(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.close();
+		Files.deleteIfExists(Paths.get(dao.getPath()));
+	}
+
+	static List<Item> makeItems(int count) {
+		List<Item> items = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			Item item = new Item("Item " + i, "http://tagbook2.com/bench/" + i);
+			for (int t = 0; t < TAGS_PER_ITEM; ++t) {
+				item.addTag(new Tag("tag" + ((i + t) % 100)));
+			}
+			items.add(item);
+		}
+		return items;
+	}
+
+	static void report(String name, long count, long queries, long nanos) {
+		System.out.printf("%-40s %8d rows %8d queries %10.1f ms%n", name, count, queries, nanos / 1e6);
+	}
+
+	@Test
+	public void benchTagHydration() throws Exception {
+		dao.addUpdateItems(makeItems(ITEMS), false);
+
+		for (H2DAO.TagHydration mode : H2DAO.TagHydration.values()) {
+			dao.setTagHydration(mode);
+			Collection<Item> items = new ArrayList<>(ITEMS);
+			H2DAOTest.startQueryStatistics(dao);
+			long time = System.nanoTime();
+			dao.loadAllItems(items);
+			time = System.nanoTime() - time;
+			long queries = H2DAOTest.countQueries(dao);
+			assertEquals(ITEMS, items.size());
+			report("loadAllItems [" + mode + "]", items.size(), queries, time);
+
+			items.clear();
+			String token = dao.loadItemsPage(items, SortKey.id, ITEMS / 4, null);
+			items.clear();
+			H2DAOTest.startQueryStatistics(dao);
+			time = System.nanoTime();
+			dao.loadItemsPage(items, SortKey.id, ITEMS / 2, token);
+			time = System.nanoTime() - time;
+			queries = H2DAOTest.countQueries(dao);
+			report("loadItemsPage [" + mode + "]", items.size(), queries, time);
+		}
+	}
+
+	@Test
+	public void benchInsertThroughput() throws Exception {
+		List<Item> items = makeItems(ITEMS);
+		H2DAOTest.startQueryStatistics(dao);
+		long time = System.nanoTime();
+		for (Item i : items) dao.addUpdateItem(i, false);
+		time = System.nanoTime() - time;
+		report("addUpdateItem per item", items.size(), H2DAOTest.countQueries(dao), time);
+		System.out.printf("%-40s %8.0f items/s%n", "", items.size() / (time / 1e9));
+
+		for (int batchSize : new int[]{100, 500, 2000}) {
+			tearDown();
+			setUp();
+			dao.setBatchSize(batchSize);
+			items = makeItems(ITEMS);
+			H2DAOTest.startQueryStatistics(dao);
+			time = System.nanoTime();
+			assertEquals(ITEMS, dao.addUpdateItems(items, false));
+			time = System.nanoTime() - time;
+			assertEquals(ITEMS, dao.getItemCount());
+			report("addUpdateItems [batch " + batchSize + "]", items.size(), H2DAOTest.countQueries(dao), time);
+			System.out.printf("%-40s %8.0f items/s%n", "", items.size() / (time / 1e9));
+		}
+	}
+
+	@Test
+	public void benchStorageProfiles() throws Exception {
+		for (H2DAO.StorageProfile profile : H2DAO.StorageProfile.values()) {
+			tearDown();
+			setUp();
+			dao.setStorageProfile(profile);
+
+			List<Item> items = makeItems(ITEMS);
+			H2DAOTest.startQueryStatistics(dao);
+			long time = System.nanoTime();
+			assertEquals(ITEMS, dao.addUpdateItems(items, false));
+			time = System.nanoTime() - time;
+			report("addUpdateItems insert [" + profile + "]", items.size(), H2DAOTest.countQueries(dao), time);
+
+			Collection<Item> loaded = new ArrayList<>(ITEMS);
+			H2DAOTest.startQueryStatistics(dao);
+			time = System.nanoTime();
+			dao.loadAllItems(loaded);
+			time = System.nanoTime() - time;
+			report("loadAllItems [" + profile + "]", loaded.size(), H2DAOTest.countQueries(dao), time);
+
+			for (Item i : loaded) i.setInfo("updated " + i.getId());
+			H2DAOTest.startQueryStatistics(dao);
+			time = System.nanoTime();
+			assertEquals(ITEMS, dao.addUpdateItems(loaded, true));
+			time = System.nanoTime() - time;
+			report("addUpdateItems update [" + profile + "]", loaded.size(), H2DAOTest.countQueries(dao), time);
+		}
+	}
+
+	@Test
+	public void benchStorageModes() throws Exception {
+		String libPath = System.getProperty("user.home") + File.separator + "tb2benchmodes.h2.db";
+		for (H2DAO.StorageMode mode : new H2DAO.StorageMode[]{H2DAO.StorageMode.DIRECT, H2DAO.StorageMode.MEMORY}) {
+			H2DAO lib = new H2DAO(libPath, mode);
+			try {
+				lib.open(true);
+				lib.addUpdateItems(makeItems(ITEMS), false);
+				lib.close();
+				long time = System.nanoTime();
+				lib.open(false);
+				report("open [" + mode + "]", lib.getItemCount(), 0, System.nanoTime() - time);
+
+				Collection<Item> items = new ArrayList<>(ITEMS);
+				time = System.nanoTime();
+				lib.loadAllItems(items);
+				report("loadAllItems [" + mode + "]", items.size(), 0, System.nanoTime() - time);
+
+				time = System.nanoTime();
+				LongLongMap counts = lib.getAllTagItemCounts();
+				report("getAllTagItemCounts [" + mode + "]", counts.size(), 0, System.nanoTime() - time);
+
+				long[] ids = new long[items.size()];
+				int n = 0;
+				for (Item i : items) ids[n++] = i.getId();
+				time = System.nanoTime();
+				lib.tagItems(ids, new Tag[]{new Tag("bulk")});
+				report("tagItems [" + mode + "]", ids.length, 0, System.nanoTime() - time);
+
+				int edits = Math.min(1000, items.size());
+				n = 0;
+				time = System.nanoTime();
+				for (Item i : items) {
+					if (n++ == edits) break;
+					i.setInfo("edited");
+					lib.addUpdateItem(i, true);
+				}
+				report("addUpdateItem update [" + mode + "]", edits, 0, System.nanoTime() - time);
+
+				time = System.nanoTime();
+				lib.close();
+				report("close [" + mode + "]", 0, 0, System.nanoTime() - time);
+			} finally {
+				Files.deleteIfExists(Paths.get(libPath));
+			}
+		}
+	}
+
+	@Test
+	public void benchBackup() throws Exception {
+		String libPath = System.getProperty("user.home") + File.separator + "tb2benchbackup.h2.db";
+		String bkPath = System.getProperty("user.home") + File.separator + "tb2benchbackup.bk";
+		H2DAO lib = new H2DAO(libPath, H2DAO.StorageMode.DIRECT);
+		try {
+			lib.open(true);
+			List<Item> items = makeItems(ITEMS);
+			Random random = new Random(1);
+			for (Item i : items) {
+				// half random, half repeated, like a typical thumbnail
+				byte[] data = new byte[8 * 1024];
+				random.nextBytes(data);
+				Arrays.fill(data, data.length / 2, data.length, (byte) 7);
+				i.setImage(new Image(-1, data));
+			}
+			lib.addUpdateItems(items, false);
+			lib.checkpoint();
+			double mb = Files.size(Paths.get(libPath)) / (1024.0 * 1024.0);
+
+			for (int run = 0; run < 2; ++run) {
+				long time = System.nanoTime();
+				lib.backupScript(bkPath);
+				reportThroughput("backup [script]", mb, Files.size(Paths.get(bkPath)), System.nanoTime() - time);
+				time = System.nanoTime();
+				lib.restore(bkPath);
+				reportThroughput("restore [script]", mb, Files.size(Paths.get(bkPath)), System.nanoTime() - time);
+
+				time = System.nanoTime();
+				lib.backup(bkPath);
+				reportThroughput("backup [blocks]", mb, Files.size(Paths.get(bkPath)), System.nanoTime() - time);
+				time = System.nanoTime();
+				lib.restore(bkPath);
+				reportThroughput("restore [blocks]", mb, Files.size(Paths.get(bkPath)), System.nanoTime() - time);
+				assertEquals(ITEMS, lib.getItemCount());
+			}
+		} finally {
+			lib.close();
+			Files.deleteIfExists(Paths.get(libPath));
+			Files.deleteIfExists(Paths.get(bkPath));
+		}
+	}
+
+	static void reportThroughput(String name, double mb, long backupBytes, long nanos) {
+		System.out.printf("%-40s %8.1f MB/s %8d KB backup %10.1f ms%n", name, mb / (nanos / 1e9), backupBytes / 1024, nanos / 1e6);
+	}
+
+	@Test
+	public void benchTagItemCounts() throws Exception {
+		dao.addUpdateItems(makeItems(ITEMS), false);
+		Collection<Tag> tags = new ArrayList<>();
+		dao.loadAllTags(tags);
+
+		H2DAOTest.startQueryStatistics(dao);
+		long time = System.nanoTime();
+		for (Tag t : tags) dao.getTagItemCount(t);
+		time = System.nanoTime() - time;
+		report("getTagItemCount per tag", tags.size(), H2DAOTest.countQueries(dao), time);
+
+		H2DAOTest.startQueryStatistics(dao);
+		time = System.nanoTime();
+		LongLongMap counts = dao.getTagItemCounts(tags);
+		time = System.nanoTime() - time;
+		report("getTagItemCounts", counts.size(), H2DAOTest.countQueries(dao), time);
+
+		H2DAOTest.startQueryStatistics(dao);
+		time = System.nanoTime();
+		counts = dao.getAllTagItemCounts();
+		time = System.nanoTime() - time;
+		report("getAllTagItemCounts", counts.size(), H2DAOTest.countQueries(dao), time);
+		assertEquals(tags.size(), counts.size());
+	}
+}
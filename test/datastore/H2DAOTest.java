@@ -4,20 +4,39 @@
 
 package datastore;
 
+import datamodel.Field;
+import datamodel.Image;
 import datamodel.Item;
 import datamodel.Tag;
 import datamodel.TagGroup;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import utils.LongLongMap;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.*;
 
@@ -51,6 +70,266 @@ public class H2DAOTest {
 		assertTrue(dao.open(false));
 	}
 
+	@Test
+	public void testCrashRecovery() throws Exception {
+		H2DAO h2dao = (H2DAO) dao;
+		assertTrue(dao.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+		dao.close();
+		Path zip = Paths.get(filePath);
+		assertTrue(Files.exists(zip));
+
+		// die without closing: H2 drops its files as they are and the zip is never written
+		assertTrue(dao.open(false));
+		assertTrue(dao.addUpdateItem(new Item("Google", "http://google.com"), false));
+		assertTrue(h2dao.getWritesSinceCheckpoint() > 0);
+		dao.checkpoint();
+		assertEquals(0, h2dao.getWritesSinceCheckpoint());
+		execute(h2dao, "SHUTDOWN IMMEDIATELY");
+		h2dao.getConnectionPool().close();
+		Files.setLastModifiedTime(zip, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+
+		// the working copy is newer than the zip, so it's recovered
+		dao = h2dao = new H2DAO(filePath);
+		assertTrue(dao.open(false));
+		assertEquals(2, dao.getItemCount());
+		dao.close();
+		// the recovered session is saved like any other
+		assertTrue(Files.exists(zip));
+		assertFalse(Files.exists(Paths.get(filePath + ".tmp")));
+
+		// a working copy older than the zip is stale: the zip was saved after it
+		assertTrue(dao.open(false));
+		assertTrue(dao.addUpdateItem(new Item("Yahoo", "http://yahoo.com"), false));
+		dao.checkpoint();
+		execute(h2dao, "SHUTDOWN IMMEDIATELY");
+		h2dao.getConnectionPool().close();
+		Path workDir = Paths.get(System.getProperty("user.home"), ".tb2test_tb2");
+		assertTrue(Files.isDirectory(workDir));
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+			for (Path f : files) Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+		}
+
+		dao = new H2DAO(filePath);
+		assertTrue(dao.open(false));
+		assertEquals(2, dao.getItemCount());
+	}
+
+	@Test
+	public void testMemoryStorage() throws Exception {
+		String libPath = System.getProperty("user.home") + File.separator + "tb2memory.h2.db";
+		String bkPath = System.getProperty("user.home") + File.separator + "tb2memory.bk";
+		H2DAO memory = new H2DAO(libPath, H2DAO.StorageMode.MEMORY);
+		try {
+			assertTrue(memory.open(true));
+			Item item1 = new Item("AHS", "http://ahs.pw");
+			item1.addTag(new Tag("web"));
+			Item item2 = new Item("Google", "http://google.com");
+			assertTrue(memory.addUpdateItem(item1, false));
+			assertTrue(memory.addUpdateItem(item2, false));
+			item1.setName("AHS2");
+			assertTrue(memory.addUpdateItem(item1, true));
+
+			// a rolled back change never reaches the log
+			ConnectionPool pool = memory.getConnectionPool();
+			pool.lockWriter();
+			try {
+				Connection con = pool.writer().getConnection();
+				con.setAutoCommit(false);
+				con.createStatement().execute("DELETE FROM item");
+				con.rollback();
+				con.setAutoCommit(true);
+			} finally {
+				pool.unlockWriter();
+			}
+			memory.checkpoint();
+			assertEquals("0", queryString(memory, "SELECT COUNT(*) FROM change_log"));
+			memory.close();
+
+			H2DAO file = new H2DAO(libPath);
+			assertEquals(H2DAO.StorageMode.DIRECT, file.getStorageMode());
+			assertTrue(file.open(false));
+			assertEquals(2, file.getItemCount());
+			assertEquals(1, file.getTagCount());
+			assertEquals("AHS2", queryString(file, "SELECT name FROM item WHERE id = " + item1.getId()));
+			assertEquals("1", queryString(file, "SELECT COUNT(*) FROM tag_item"));
+			execute(file, "DELETE FROM item WHERE id = " + item2.getId());
+			file.close();
+
+			assertTrue(memory.open(false));
+			assertEquals(1, memory.getItemCount());
+			memory.backup(bkPath);
+			assertTrue(memory.removeItem(item1.getId()));
+			assertEquals(0, memory.getItemCount());
+			memory.restore(bkPath);
+			assertEquals(1, memory.getItemCount());
+			execute(memory, "DELETE FROM tag");
+			memory.close();
+			assertTrue(file.open(false));
+			assertEquals(0, file.getTagCount());
+			// removed along with the tag
+			assertEquals("0", queryString(file, "SELECT COUNT(*) FROM tag_item"));
+			file.close();
+		} finally {
+			Files.deleteIfExists(Paths.get(libPath));
+			Files.deleteIfExists(Paths.get(bkPath));
+		}
+	}
+
+	@Test
+	public void testDirectStorage() throws Exception {
+		String libPath = System.getProperty("user.home") + File.separator + "tb2direct.h2.db";
+		String zipPath = System.getProperty("user.home") + File.separator + "tb2export";
+		String unpackedPath = System.getProperty("user.home") + File.separator + "tb2unpacked.h2.db";
+		H2DAO direct = new H2DAO(libPath);
+		assertEquals(H2DAO.StorageMode.DIRECT, direct.getStorageMode());
+		try {
+			assertTrue(direct.open(true));
+			assertTrue(direct.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+			direct.close();
+			// nothing is unzipped next to the library
+			assertFalse(Files.exists(Paths.get(System.getProperty("user.home"), ".tb2direct.h2.db_tb2")));
+
+			assertTrue(direct.open(false));
+			assertEquals(1, direct.getItemCount());
+			direct.exportLibrary(zipPath);
+			direct.close();
+
+			// the export is a zip library
+			H2DAO zip = new H2DAO(zipPath);
+			assertEquals(H2DAO.StorageMode.ZIP, zip.getStorageMode());
+			assertTrue(zip.open(false));
+			assertEquals(1, zip.getItemCount());
+			zip.close();
+
+			H2DAO.unpackLibrary(zipPath, unpackedPath);
+			H2DAO unpacked = new H2DAO(unpackedPath);
+			assertTrue(unpacked.open(false));
+			assertEquals(1, unpacked.getItemCount());
+			unpacked.close();
+
+			try {
+				direct.open(true);
+				fail();
+			} catch (Exception ignored) {
+				// an existing library isn't overwritten
+			}
+		} finally {
+			Files.deleteIfExists(Paths.get(libPath));
+			Files.deleteIfExists(Paths.get(zipPath));
+			Files.deleteIfExists(Paths.get(unpackedPath));
+		}
+	}
+
+	@Test
+	public void testSchemaMigration() throws Exception {
+		H2DAO h2dao = (H2DAO) dao;
+		assertEquals(4, h2dao.getSchemaVersion());
+		Item item1 = new Item("AHS", "", "http://ahs.pw", false, "", "", new ArrayList<Tag>(), new Image(-1, new byte[]{1}));
+		Item item2 = new Item("Google", "", "http://google.com", false, "", "", new ArrayList<Tag>(), new Image(-1, new byte[]{2}));
+		assertTrue(dao.addUpdateItem(item1, false));
+		assertTrue(dao.addUpdateItem(item2, false));
+
+		// turn the library into one created before schema versioning
+		ConnectionPool pool = h2dao.getConnectionPool();
+		pool.lockWriter();
+		try {
+			Statement s = pool.writer().getConnection().createStatement();
+			s.execute("DROP TABLE meta");
+			s.execute("DROP INDEX idx_item_dateadd");
+			// images were stored once per item
+			s.execute("DROP INDEX idx_image_hash");
+			s.execute("ALTER TABLE image DROP COLUMN hash");
+			s.execute("UPDATE image SET data = X'07'");
+			s.close();
+		} finally {
+			pool.unlockWriter();
+		}
+		assertEquals(1, h2dao.getSchemaVersion());
+		dao.close();
+
+		assertTrue(dao.open(false));
+		assertEquals(4, h2dao.getSchemaVersion());
+		assertTrue(h2dao.explainForColumn("select_items_first_page", "dateadd", 10L).contains("IDX_ITEM_DATEADD"));
+		assertEquals(dao.getItem(item1.getId()).getImage().getId(), dao.getItem(item2.getId()).getImage().getId());
+		assertEquals(0, dao.removeUnusedImages());
+	}
+
+	@Test
+	public void testImageDedup() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItem
+		 *      addUpdateItems
+		 *      removeUnusedImages
+		 */
+		byte[] data = {1, 2, 3, 4};
+		Item item1 = new Item("AHS", "", "http://ahs.pw", false, "", "", new ArrayList<Tag>(), new Image(-1, data));
+		Item item2 = new Item("Google", "", "http://google.com", false, "", "", new ArrayList<Tag>(), new Image(-1, data.clone()));
+		assertTrue(dao.addUpdateItem(item1, false));
+		dao.addUpdateItems(Arrays.asList(item2), false);
+		long imageId = item1.getImage().getId();
+		assertEquals(imageId, item2.getImage().getId());
+		assertEquals(imageId, dao.getItem(item2.getId()).getImage().getId());
+
+		// still in use by the second item
+		item1.setImage(new Image(-1, new byte[]{5}));
+		assertTrue(dao.addUpdateItem(item1, true));
+		assertFalse(imageId == item1.getImage().getId());
+		assertEquals(0, dao.removeUnusedImages());
+
+		item2.setImage(new Image(-1, new byte[]{5}));
+		assertTrue(dao.addUpdateItem(item2, true));
+		assertEquals(item1.getImage().getId(), item2.getImage().getId());
+		assertEquals(1, dao.removeUnusedImages());
+		assertTrue(Arrays.equals(new byte[]{5}, dao.getItem(item1.getId()).getImage().getData()));
+	}
+
+	@Test
+	public void testImageChangedInPlace() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItem
+		 *      getItem
+		 */
+		Item item = new Item("AHS", "", "http://ahs.pw", false, "", "", new ArrayList<Tag>(), new Image(-1, new byte[]{1, 2}));
+		assertTrue(dao.addUpdateItem(item, false));
+
+		Item loaded = dao.getItem(item.getId());
+		Image image = loaded.getImage();
+		image.setData(new byte[]{3, 4});
+		// the item doesn't know about the change until the image is set again
+		assertFalse(loaded.isDirty());
+		loaded.setImage(image);
+		assertTrue(loaded.isDirty(Field.image));
+		assertTrue(dao.addUpdateItem(loaded, true));
+		assertTrue(Arrays.equals(new byte[]{3, 4}, dao.getItem(item.getId()).getImage().getData()));
+	}
+
+	@Test
+	public void testIndexUse() throws Exception {
+		H2DAO h2dao = (H2DAO) dao;
+		Timestamp ts = Timestamp.valueOf("2014-01-01 00:00:00");
+
+		String[] plans = {
+				h2dao.explain("count_tag_items", 1L),
+				h2dao.explain("select_tag_item_ids", 1L, 10L),
+				h2dao.explain("select_item_by_ref", "http://ahs.pw"),
+				h2dao.explain("select_tag_by_name", "todo"),
+				h2dao.explain("select_items_by_id", (Object) new Long[]{1L, 2L}),
+		};
+		for (String plan : plans) assertFalse(plan, plan.contains("tableScan"));
+
+		for (SortKey key : new SortKey[]{SortKey.name, SortKey.dateadd, SortKey.datemod}) {
+			String index = "IDX_ITEM_" + key.name().toUpperCase();
+			assertTrue(h2dao.explainForColumn("select_items_first_page", key.name(), 10L).contains(index));
+			Object value = key == SortKey.name ? "AHS" : ts;
+			String plan = h2dao.explainForColumn("select_items_next_page", key.name(), value, value, 1L, 10L);
+			assertTrue(plan, plan.contains(index));
+			assertTrue(plan, plan.contains("index sorted"));
+		}
+		assertTrue(h2dao.explainForColumn("select_tags_next_page", "datemod", ts, ts, 1L, 10L).contains("IDX_TAG_DATEMOD"));
+	}
+
 	@Test
 	public void testAddItems() throws Exception {
 		/**
@@ -127,6 +406,63 @@ public class H2DAOTest {
 		return items;
 	}
 
+	@Test
+	public void testBatchInsert() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItems
+		 *      setBatchSize
+		 */
+		((H2DAO) dao).setBatchSize(2);
+		List<Item> items = new ArrayList<>(makeItems());
+		items.add(new Item("AHS again", "", "http://ahs.pw", false, "", "", makeTags(), null));
+		items.add(new Item("Wiki", "", "http://wikipedia.org", false, "", "", new ArrayList<Tag>(), null));
+		items.add(new Item("No ref", "", null, false, "", "", makeTags(), null));
+		assertEquals(5, dao.addUpdateItems(items, false));
+
+		assertEquals(4, dao.getItemCount());
+		assertEquals(5, dao.getTagCount());
+		assertEquals(-1, items.get(2).getId()); // duplicate ref
+		for (Item i : items) {
+			if (i.getId() < 0) continue;
+			assertEquals(i.getRef(), dao.getItem(i.getId()).getRef());
+			assertEquals(i.getTags().size(), dao.getItemTagCount(i.getId()));
+		}
+
+		// generated ids continue after the batch
+		Item next = new Item("Next", "", "http://next.org", false, "", "", new ArrayList<Tag>(), null);
+		assertTrue(dao.addUpdateItem(next, false));
+		assertTrue(next.getId() > items.get(4).getId());
+	}
+
+	@Test
+	public void testTaggingManyItems() throws Exception {
+		/**
+		 * Covers:
+		 *      tagItems
+		 */
+		List<Item> items = new ArrayList<>(50);
+		for (int i = 0; i < 50; ++i) {
+			items.add(new Item("Item " + i, "", "http://ahs.pw/" + i, false, "", "", new ArrayList<Tag>(), null));
+		}
+		dao.addUpdateItems(items, false);
+		long[] ids = new long[items.size()];
+		for (int i = 0; i < ids.length; ++i) ids[i] = items.get(i).getId();
+
+		Tag existing = new Tag("existing");
+		assertTrue(dao.addUpdateTag(existing, false));
+		Tag[] tags = {new Tag("first"), existing, new Tag("second")};
+
+		H2DAO h2dao = (H2DAO) dao;
+		h2dao.setBatchSize(20);
+		startQueryStatistics(h2dao);
+		assertEquals(50, dao.tagItems(ids, tags));
+		assertEquals(1, countQueries(h2dao)); // one id lookup for the existing tag
+
+		assertEquals(3, dao.getTagCount());
+		for (Tag t : tags) assertEquals(50, dao.getTagItemCount(dao.getTag(t.getId())));
+	}
+
 	@Test
 	public void testBackupRestore() throws Exception {
 		/**
@@ -139,18 +475,105 @@ public class H2DAOTest {
 		 */
 		Collection<Item> items = makeItems();
 		dao.addUpdateItems(items, false);
+		byte[] data = {1, 2, 3, 4};
+		Item withImage = new Item("Bing", "", "http://bing.com", false, "", "", new ArrayList<Tag>(), new Image(-1, data));
+		assertTrue(dao.addUpdateItem(withImage, false));
+		H2DAO h2 = (H2DAO) dao;
+		String tagItems = queryString(h2, "SELECT COUNT(*) FROM tag_item");
 
 		String backupPath = System.getProperty("user.home") + File.separator + "tb2bkup.tbk";
-		dao.backup(backupPath);
-		dao.restore(backupPath);
+		String scriptPath = System.getProperty("user.home") + File.separator + "tb2bkup.sql";
+		try {
+			dao.backup(backupPath);
+			assertTrue(BlockBackup.isBlockBackup(backupPath));
+			execute(h2, "DELETE FROM item");
+			dao.restore(backupPath);
+
+			assertTrue(dao.itemExist("http://ahs.pw"));
+			assertTrue(dao.itemExist("http://google.com"));
+			assertEquals(3, dao.getItemCount());
+			assertEquals(tagItems, queryString(h2, "SELECT COUNT(*) FROM tag_item"));
+			assertTrue(Arrays.equals(data, dao.getItem(withImage.getId()).getImage().getData()));
+			// restored ids aren't handed out again
+			Item next = new Item("Yahoo", "http://yahoo.com");
+			assertTrue(dao.addUpdateItem(next, false));
+			assertTrue(next.getId() > withImage.getId());
+
+			// backups written before the block format still restore
+			h2.backupScript(scriptPath);
+			assertFalse(BlockBackup.isBlockBackup(scriptPath));
+			execute(h2, "DELETE FROM item");
+			dao.restore(scriptPath);
+			assertEquals(4, dao.getItemCount());
+		} finally {
+			Files.deleteIfExists(Paths.get(backupPath));
+			Files.deleteIfExists(Paths.get(scriptPath));
+		}
+	}
 
-		assertTrue(dao.itemExist("http://ahs.pw"));
-		assertTrue(dao.itemExist("http://google.com"));
+	@Test
+	public void testBlockBackupVersions() throws Exception {
+		/**
+		 * Covers:
+		 *      backup
+		 *      restore of older, newer, damaged and foreign backups
+		 */
+		dao.addUpdateItems(makeItems(), false);
+		H2DAO h2 = (H2DAO) dao;
+		Path backupPath = Paths.get(System.getProperty("user.home"), "tb2bkup3.tbk");
+		try {
+			dao.backup(backupPath.toString());
+			byte[] backup = Files.readAllBytes(backupPath);
+
+			// a backup of an older schema is restored as it was and then migrated
+			setBackupSchemaVersion(backup, 3);
+			Files.write(backupPath, backup);
+			execute(h2, "DELETE FROM item");
+			dao.restore(backupPath.toString());
+			assertEquals(2, dao.getItemCount());
+			assertEquals(4, h2.getSchemaVersion());
+
+			// a failed restore leaves the library as it was
+			setBackupSchemaVersion(backup, 5);
+			assertRestoreFails(backupPath, backup);
+			setBackupSchemaVersion(backup, 4);
+			assertRestoreFails(backupPath, Arrays.copyOf(backup, backup.length - 20));
+
+			// wrong password
+			Map<String, String> sql = Collections.singletonMap("select_rows_after", "SELECT _ROWID_, * FROM TABLE_NAME WHERE _ROWID_ > ? ORDER BY _ROWID_ LIMIT ?;");
+			ConnectionPool pool = h2.getConnectionPool();
+			pool.lockWriter();
+			try (OutputStream os = Files.newOutputStream(backupPath)) {
+				new BlockBackup("wrong").write(pool.writer().getConnection(), sql, Collections.singletonList("ITEM"), 4, os);
+			} finally {
+				pool.unlockWriter();
+			}
+			assertRestoreFails(backupPath, Files.readAllBytes(backupPath));
+		} finally {
+			Files.deleteIfExists(backupPath);
+		}
+	}
 
-		Files.deleteIfExists(Paths.get(backupPath));
+	private static void setBackupSchemaVersion(byte[] backup, int version) {
+		// after the magic and the format version
+		ByteBuffer.wrap(backup, 9, 4).putInt(version);
+	}
+
+	private void assertRestoreFails(Path backupPath, byte[] backup) throws Exception {
+		Files.write(backupPath, backup);
+		String tagItems = queryString("SELECT COUNT(*) FROM tag_item");
+		try {
+			dao.restore(backupPath.toString());
+			fail();
+		} catch (Exception ignored) {
+		}
+		assertEquals(2, dao.getItemCount());
+		assertEquals(tagItems, queryString("SELECT COUNT(*) FROM tag_item"));
+		assertTrue(dao.itemExist("http://ahs.pw"));
 	}
 
 	@Test
+	@SuppressWarnings("deprecation")
 	public void testLoadingItems() throws Exception {
 		/**
 		 * Covers:
@@ -181,6 +604,326 @@ public class H2DAOTest {
 		assertTrue(items.size() == 2);
 	}
 
+	@Test
+	public void testIdLists() throws Exception {
+		/**
+		 * Covers:
+		 *      loadItemsById
+		 *      loadTagsById
+		 *      removeItems
+		 */
+		dao.addUpdateItems(makeItems(), false);
+
+		Collection<Item> items = new ArrayList<>(2);
+		dao.loadItemsById(items);
+		assertEquals(0, items.size());
+
+		// more ids than one chunk, with duplicates and missing ids
+		long[] ids = new long[2500];
+		for (int i = 0; i < ids.length; i++) ids[i] = i % 1200 + 1;
+		dao.loadItemsById(items, ids);
+		assertEquals(2, items.size());
+
+		Collection<Tag> tags = new ArrayList<>(5);
+		dao.loadTagsById(tags, ids);
+		assertEquals(5, tags.size());
+
+		// a cancel during the first chunk stops the load before the second
+		long[] split = new long[1001];
+		for (int i = 0; i < split.length; i++) split[i] = i - 998; // item 1 ends the first chunk, item 2 starts the second
+		Collection<Item> cancelling = new ArrayList<Item>() {
+			@Override
+			public boolean add(Item item) {
+				dao.cancel();
+				return super.add(item);
+			}
+
+			@Override
+			public boolean addAll(Collection<? extends Item> c) {
+				dao.cancel();
+				return super.addAll(c);
+			}
+		};
+		dao.loadItemsById(cancelling, split);
+		assertEquals(1, cancelling.size());
+		assertEquals(1, cancelling.iterator().next().getId());
+
+		// a different id list reuses the same statement
+		long prepared = ((H2DAO) dao).getStatementCache().getPrepareCount();
+		items.clear();
+		dao.loadItemsById(items, 2, 2);
+		assertEquals(1, items.size());
+		assertEquals(prepared, ((H2DAO) dao).getStatementCache().getPrepareCount());
+
+		assertEquals(0, dao.removeItems());
+		assertEquals(2, dao.removeItems(1, 1, 2, 99));
+		assertEquals(0, dao.getItemCount());
+	}
+
+	@Test
+	public void testTagHydration() throws Exception {
+		/**
+		 * Covers:
+		 *      loadAllItems
+		 *      loadItemsById
+		 *      getMostTaggedItem
+		 */
+		H2DAO h2 = (H2DAO) dao;
+		dao.addUpdateItems(makeItems(), false);
+
+		Collection<Item> perItem = new ArrayList<>(2);
+		h2.setTagHydration(H2DAO.TagHydration.PER_ITEM);
+		startQueryStatistics(h2);
+		dao.loadAllItems(perItem);
+		long perItemQueries = countQueries(h2);
+
+		Collection<Item> batch = new ArrayList<>(2);
+		h2.setTagHydration(H2DAO.TagHydration.BATCH);
+		startQueryStatistics(h2);
+		dao.loadAllItems(batch);
+		long batchQueries = countQueries(h2);
+
+		assertEquals(3, perItemQueries);
+		assertEquals(2, batchQueries);
+		assertEquals(perItem.size(), batch.size());
+		for (Item i : batch) {
+			assertEquals(5, i.getTags().size());
+		}
+
+		batch.clear();
+		dao.loadItemsById(batch, 1, 2);
+		for (Item i : batch) {
+			assertEquals(5, i.getTags().size());
+		}
+
+		assertEquals(5, dao.getMostTaggedItem().getTags().size());
+	}
+
+	@Test
+	public void testLoadingImages() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItem
+		 *      loadItemImages
+		 */
+		byte[] data = {1, 2, 3, 4};
+		Item item = new Item("AHS", "", "http://ahs.pw", false, "", "", new ArrayList<Tag>(), new Image(-1, data));
+		assertTrue(dao.addUpdateItem(item, false));
+		assertTrue(dao.addUpdateItem(new Item("Google", "http://google.com"), false));
+
+		Collection<Item> items = new ArrayList<>(2);
+		dao.loadAllItems(items);
+		dao.loadItemImages(items);
+		for (Item i : items) {
+			if (i.getImage() == null) continue;
+			assertTrue(i.getImage().isLoaded());
+			assertTrue(Arrays.equals(data, i.getImage().getData()));
+		}
+		assertTrue(Arrays.equals(data, dao.getItem(item.getId()).getImage().getData()));
+
+		// the data is read once and served from the cache afterwards
+		ImageCache cache = ((H2DAO) dao).getImageCache();
+		long hits = cache.getHitCount();
+		items.clear();
+		dao.loadAllItems(items);
+		dao.loadItemImages(items);
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals(data.length, cache.getSize());
+	}
+
+	@Test
+	public void testStatementCache() throws Exception {
+		dao.addUpdateItems(makeItems(), false);
+		StatementCache cache = ((H2DAO) dao).getStatementCache();
+
+		dao.getItem(1);
+		long prepared = cache.getPrepareCount();
+		long hits = cache.getHitCount();
+		dao.getItem(2);
+		dao.getItem(1);
+		assertEquals(prepared, cache.getPrepareCount());
+		assertTrue(cache.getHitCount() >= hits + 2);
+
+		// cached statements survive a restore
+		String backupPath = System.getProperty("user.home") + File.separator + "tb2bkup2.tbk";
+		dao.backup(backupPath);
+		dao.restore(backupPath);
+		Files.deleteIfExists(Paths.get(backupPath));
+		assertFalse(dao.getItem(1).isNull());
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		dao.addUpdateItems(makeItems(), false);
+		final ConnectionPool pool = ((H2DAO) dao).getConnectionPool();
+
+		// the writer keeps a transaction open while another thread reads
+		pool.lockWriter();
+		try {
+			Connection con = pool.writer().getConnection();
+			con.setAutoCommit(false);
+			con.createStatement().executeUpdate("DELETE FROM item");
+
+			final long[] count = {-1};
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						count[0] = dao.getItemCount();
+					} catch (Exception ignored) {
+					}
+				}
+			});
+			reader.start();
+			reader.join(5000);
+			assertFalse(reader.isAlive());
+			assertEquals(2, count[0]);
+			assertEquals(0, dao.getItemCount()); // the writer sees its own changes
+
+			con.rollback();
+			con.setAutoCommit(true);
+		} finally {
+			pool.unlockWriter();
+		}
+
+		assertEquals(2, dao.getItemCount());
+		assertTrue(pool.getReaderCount() >= 1);
+
+		// once every read connection is lent, a reader waits for one to be returned
+		final CountDownLatch lent = new CountDownLatch(4);
+		final CountDownLatch done = new CountDownLatch(1);
+		List<Thread> holders = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			Thread holder = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						pool.acquireReader();
+						try {
+							pool.current();
+							lent.countDown();
+							done.await();
+						} finally {
+							pool.releaseReader();
+						}
+					} catch (Exception ignored) {
+					}
+				}
+			});
+			holder.start();
+			holders.add(holder);
+		}
+		assertTrue(lent.await(5, TimeUnit.SECONDS));
+		final long[] count = {-1};
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					count[0] = dao.getItemCount();
+				} catch (Exception ignored) {
+				}
+			}
+		});
+		reader.start();
+		reader.join(200);
+		assertTrue(reader.isAlive());
+		assertEquals(4, pool.getReaderCount());
+		done.countDown();
+		reader.join(5000);
+		for (Thread holder : holders) holder.join(5000);
+		assertEquals(2, count[0]);
+		assertEquals(4, pool.getReaderCount());
+	}
+
+	@Test
+	public void testCursors() throws Exception {
+		/**
+		 * Covers:
+		 *      openItemCursor
+		 *      openTagCursor
+		 *      cancel
+		 */
+		dao.addUpdateItems(makeItems(), false);
+
+		List<Item> items = new ArrayList<>(2);
+		try (Cursor<Item> c = dao.openItemCursor(1)) {
+			while (c.hasNext()) items.add(c.next());
+		}
+		assertEquals(2, items.size());
+		assertEquals("http://ahs.pw", items.get(0).getRef());
+		assertEquals(5, items.get(1).getTags().size());
+
+		int count = 0;
+		try (Cursor<Tag> c = dao.openTagCursor(2)) {
+			while (c.hasNext()) {
+				c.next();
+				count++;
+			}
+		}
+		assertEquals(5, count);
+
+		try (Cursor<Tag> c = dao.openTagCursor(2)) {
+			c.next();
+			c.next();
+			dao.cancel();
+			assertFalse(c.hasNext());
+		}
+		assertFalse(dao.openItemCursor(10).next().isNull());
+	}
+
+	@Test
+	public void testPaging() throws Exception {
+		/**
+		 * Covers:
+		 *      loadItemsPage
+		 *      loadTagsPage
+		 */
+		dao.addUpdateItems(makeItems(), false);
+
+		for (SortKey key : SortKey.values()) {
+			List<Item> items = new ArrayList<>(2);
+			String token = dao.loadItemsPage(items, key, 1, null);
+			assertEquals(1, items.size());
+			assertNotNull(token);
+			token = dao.loadItemsPage(items, key, 1, token);
+			assertEquals(2, items.size());
+			assertFalse(items.get(0).getId() == items.get(1).getId());
+			if (token != null) {
+				assertNull(dao.loadItemsPage(items, key, 1, token));
+				assertEquals(2, items.size());
+			}
+
+			List<Tag> tags = new ArrayList<>(5);
+			token = null;
+			do {
+				token = dao.loadTagsPage(tags, key, 2, token);
+			} while (token != null);
+			assertEquals(5, tags.size());
+			assertEquals(5, new HashSet<>(tags).size());
+		}
+
+		// a cancelled page is short but isn't taken for the last one
+		List<Tag> cancelling = new ArrayList<Tag>() {
+			@Override
+			public boolean add(Tag tag) {
+				dao.cancel();
+				return super.add(tag);
+			}
+		};
+		String token = dao.loadTagsPage(cancelling, SortKey.id, 5, null);
+		assertEquals(1, cancelling.size());
+		assertNotNull(token);
+		List<Tag> rest = new ArrayList<>(4);
+		assertNull(dao.loadTagsPage(rest, SortKey.id, 5, token));
+		assertEquals(4, rest.size());
+
+		try {
+			dao.loadItemsPage(new ArrayList<Item>(), SortKey.name, 1, dao.loadItemsPage(new ArrayList<Item>(), SortKey.id, 1, null));
+			fail();
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
 	@Test
 	public void testUpdatingItems() throws Exception {
 		/**
@@ -203,6 +946,210 @@ public class H2DAOTest {
 		// update null ref
 	}
 
+	@Test
+	public void testFailedBatchIsRolledBack() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItems
+		 */
+		final int[] calls = {0};
+		H2DAO failing = new H2DAO(filePath + "fail") {
+			@Override
+			public boolean addUpdateItem(Item item, boolean update) throws Exception {
+				if (update && ++calls[0] == 2) throw new Exception("write failed");
+				return super.addUpdateItem(item, update);
+			}
+		};
+		failing.open(true);
+		try {
+			assertEquals(2, failing.addUpdateItems(makeItems(), false));
+			Item item1 = failing.getItem(1);
+			Item item2 = failing.getItem(2);
+			item1.setName("A2");
+			item2.setName("G2");
+			try {
+				failing.addUpdateItems(Arrays.asList(item1, item2), true);
+				fail();
+			} catch (Exception ignored) {
+			}
+
+			// the first update went down with the second
+			failing.close();
+			assertTrue(failing.open(false));
+			assertEquals("AHS", failing.getItem(1).getName());
+			assertEquals("Google", failing.getItem(2).getName());
+		} finally {
+			failing.close();
+			Files.deleteIfExists(Paths.get(failing.getPath()));
+		}
+	}
+
+	@Test
+	public void testPartialUpdates() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItem
+		 *      addUpdateTag
+		 */
+		assertTrue(dao.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+		Item item = dao.getItem(1);
+		assertFalse(item.isDirty());
+		Tag tag = new Tag("todo");
+		assertTrue(dao.addUpdateTag(tag, false));
+		assertFalse(tag.isDirty());
+
+		// change the stored rows behind the loaded objects
+		execute("UPDATE item SET name = 'stored' WHERE id = 1");
+		execute("UPDATE tag SET color = '#000' WHERE id = " + tag.getId());
+
+		// nothing changed, nothing written
+		assertTrue(dao.addUpdateItem(item, true));
+		assertTrue(dao.addUpdateTag(tag, true));
+
+		// only the changed columns are written
+		item.setPrivy(true);
+		assertTrue(dao.addUpdateItem(item, true));
+		assertFalse(item.isDirty());
+		Item stored = dao.getItem(1);
+		assertEquals("stored", stored.getName());
+		assertTrue(stored.isPrivy());
+		assertEquals(item.getDatemod(), stored.getDatemod());
+
+		tag.setName("done");
+		assertTrue(dao.addUpdateTag(tag, true));
+		// tag instances are shared by id, so read the row itself
+		assertEquals("done #000", queryString("SELECT name || ' ' || color FROM tag WHERE id = " + tag.getId()));
+	}
+
+	@Test
+	public void testStorageProfiles() throws Exception {
+		H2DAO h2dao = (H2DAO) dao;
+		String cacheSize = "SELECT value FROM INFORMATION_SCHEMA.SETTINGS WHERE name = 'CACHE_SIZE'";
+		assertEquals(H2DAO.StorageProfile.DEFAULT, h2dao.getStorageProfile());
+		h2dao.setStorageProfile(H2DAO.StorageProfile.LARGE_LIBRARY);
+		assertEquals("131072", queryString(cacheSize));
+
+		h2dao.beginBulkImport();
+		h2dao.beginBulkImport();
+		assertEquals("65536", queryString(cacheSize));
+		assertEquals("2000", queryString("SELECT value FROM INFORMATION_SCHEMA.SETTINGS WHERE name = 'WRITE_DELAY'"));
+		List<Item> items = Arrays.asList(new Item("AHS", "http://ahs.pw"), new Item("Google", "http://google.com"));
+		assertEquals(2, dao.addUpdateItems(items, false));
+		h2dao.endBulkImport();
+		// the outer bulk import is still going
+		assertEquals("65536", queryString(cacheSize));
+		h2dao.endBulkImport();
+		assertEquals("131072", queryString(cacheSize));
+		assertEquals(2, dao.getItemCount());
+		try {
+			h2dao.endBulkImport();
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+
+		// and is applied again on open
+		dao.close();
+		assertTrue(dao.open(false));
+		assertEquals("131072", queryString(cacheSize));
+	}
+
+	private void execute(String sql) throws Exception {
+		execute((H2DAO) dao, sql);
+	}
+
+	static void execute(H2DAO dao, String sql) throws Exception {
+		ConnectionPool pool = dao.getConnectionPool();
+		pool.lockWriter();
+		try {
+			Statement s = pool.writer().getConnection().createStatement();
+			s.execute(sql);
+			s.close();
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	private String queryString(String sql) throws Exception {
+		return queryString((H2DAO) dao, sql);
+	}
+
+	/**
+	 * Turns on H2's query statistics for the library, starting the count of {@link #countQueries(H2DAO)} over.
+	 */
+	static void startQueryStatistics(H2DAO dao) throws Exception {
+		execute(dao, "SET QUERY_STATISTICS TRUE");
+	}
+
+	/**
+	 * @return the number of queries the library ran since {@link #startQueryStatistics(H2DAO)}, not counting those
+	 * the driver runs for metadata and generated keys
+	 */
+	static long countQueries(H2DAO dao) throws Exception {
+		return Long.parseLong(queryString(dao, "SELECT COALESCE(SUM(execution_count), 0) FROM information_schema.query_statistics " +
+				"WHERE UPPER(sql_statement) LIKE 'SELECT%' AND UPPER(sql_statement) NOT LIKE '%INFORMATION_SCHEMA%' " +
+				"AND UPPER(sql_statement) NOT LIKE '%SCOPE_IDENTITY()%'"));
+	}
+
+	static String queryString(H2DAO dao, String sql) throws Exception {
+		ConnectionPool pool = dao.getConnectionPool();
+		pool.lockWriter();
+		try {
+			Statement s = pool.writer().getConnection().createStatement();
+			ResultSet rs = s.executeQuery(sql);
+			assertTrue(rs.next());
+			String value = rs.getString(1);
+			s.close();
+			return value;
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
+	@Test
+	public void testRetaggingItem() throws Exception {
+		/**
+		 * Covers:
+		 *      addUpdateItem
+		 *      getItem
+		 */
+		Item item = new Item("AHS", "http://ahs.pw");
+		Tag b = new Tag("b");
+		Tag c = new Tag("c");
+		Tag d = new Tag("d");
+		item.addTags(new Tag("a"), b, c);
+		assertTrue(dao.addUpdateItem(item, false));
+		long kept = b.getId();
+		long rowId = tagItemRowId(item.getId(), kept);
+
+		item.removeTagByName("a");
+		item.addTag(d);
+		assertTrue(dao.addUpdateItem(item, true));
+		Set<Long> ids = new HashSet<>();
+		for (Tag t : dao.getItem(item.getId()).getTags()) ids.add(t.getId());
+		assertEquals(new HashSet<>(Arrays.asList(b.getId(), c.getId(), d.getId())), ids);
+		// the link that didn't change wasn't rewritten
+		assertEquals(rowId, tagItemRowId(item.getId(), kept));
+
+		item.setTags(new ArrayList<Tag>());
+		assertTrue(dao.addUpdateItem(item, true));
+		assertEquals(0, dao.getItem(item.getId()).getTags().size());
+	}
+
+	private long tagItemRowId(long itemId, long tagId) throws Exception {
+		ConnectionPool pool = ((H2DAO) dao).getConnectionPool();
+		pool.lockWriter();
+		try {
+			Statement s = pool.writer().getConnection().createStatement();
+			ResultSet rs = s.executeQuery("SELECT _ROWID_ FROM tag_item WHERE itemid = " + itemId + " AND tagid = " + tagId);
+			assertTrue(rs.next());
+			long rowId = rs.getLong(1);
+			s.close();
+			return rowId;
+		} finally {
+			pool.unlockWriter();
+		}
+	}
+
 	@Test
 	public void testRemovingItems() throws Exception {
 		/**
@@ -266,6 +1213,8 @@ public class H2DAOTest {
 		 *      getTop5Tags
 		 *      getItemTagCount
 		 *      getTagItemCount
+		 *      getTagItemCounts
+		 *      getAllTagItemCounts
 		 */
 
 		dao.addUpdateItems(makeItems(), false);
@@ -280,9 +1229,25 @@ public class H2DAOTest {
 		assertEquals(5, tags.size());
 		assertFalse(dao.getMostTaggedItem().isNull());
 		assertFalse(dao.getMostUsedTag().isNull());
+
+		Tag unused = new Tag("unused");
+		assertTrue(dao.addUpdateTag(unused, false));
+		tags = new ArrayList<>(6);
+		dao.loadAllTags(tags);
+		LongLongMap counts = dao.getTagItemCounts(tags);
+		LongLongMap allCounts = dao.getAllTagItemCounts();
+		assertEquals(6, counts.size());
+		assertEquals(5, allCounts.size());
+		for (Tag t : tags) {
+			assertEquals(dao.getTagItemCount(t), counts.get(t.getId(), -1));
+			assertEquals(dao.getTagItemCount(t), allCounts.get(t.getId(), 0));
+		}
+		assertEquals(0, counts.get(unused.getId(), -1));
+		assertEquals(0, dao.getTagItemCounts(new ArrayList<Tag>()).size());
 	}
 
 	@Test
+	@SuppressWarnings("deprecation")
 	public void testLoadingTags() throws Exception {
 		/**
 		 * Covers:
@@ -341,6 +1306,69 @@ public class H2DAOTest {
 		assertEquals(3, dao.removeUnusedTags());
 	}
 
+	@Test
+	public void testChunkedRemoval() throws Exception {
+		/**
+		 * Covers:
+		 *      removeTagWithItems
+		 *      removeUnusedTags
+		 *      cancel
+		 *      getProgress
+		 */
+		((H2DAO) dao).setBatchSize(7);
+		List<Item> items = new ArrayList<>();
+		for (int i = 0; i < 53; ++i) items.add(new Item("Item " + i, "http://site" + i + ".com"));
+		dao.addUpdateItems(items, false);
+		long[] ids = new long[50];
+		for (int i = 0; i < ids.length; ++i) ids[i] = items.get(i).getId();
+		Tag bulk = new Tag("bulk");
+		dao.tagItems(ids, new Tag[]{bulk});
+		for (int i = 0; i < 20; ++i) assertTrue(dao.addUpdateTag(new Tag("unused" + i), false));
+		assertEquals(20, dao.getUnusedTagCount());
+		assertEquals(3, dao.getUntaggedItemCount());
+
+		// another transaction locks every item but the first chunk, so the removal waits on the second chunk
+		final Connection con = ((H2DAO) dao).getConnectionPool().openConnection();
+		con.setAutoCommit(false);
+		con.createStatement().executeUpdate("UPDATE item SET info = 'locked' WHERE id > " + ids[6]);
+		final Throwable[] failure = {null};
+		Thread canceller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!dao.isWorking() || dao.getProgress() < 7) Thread.sleep(5);
+					dao.cancel();
+					con.rollback();
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		});
+		canceller.start();
+
+		// a cancelled removal keeps the chunks it committed and the tag
+		try {
+			assertFalse(dao.removeTagWithItems(bulk.getId()));
+		} finally {
+			canceller.join(5000);
+			con.close();
+		}
+		assertNull(failure[0]);
+		assertEquals(14, dao.getProgress());
+		assertEquals(39, dao.getItemCount());
+		assertEquals(36, dao.getTagItemCount(bulk));
+
+		// a cancel only affects the operations running at the time
+		dao.cancel();
+		assertTrue(dao.removeTagWithItems(bulk.getId()));
+		assertEquals(36, dao.getProgress());
+		assertEquals(3, dao.getItemCount());
+		assertEquals(3, dao.getUntaggedItemCount());
+
+		assertEquals(20, dao.removeUnusedTags());
+		assertEquals(0, dao.getUnusedTagCount());
+	}
+
 	@Test
 	public void testUpdatingTag() throws Exception {
 		dao.addUpdateItems(makeItems(), false);
@@ -0,0 +1,58 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman 
+ */
+public class ImageCacheTest {
+
+	@Test
+	public void testLruEviction() {
+		ImageCache cache = new ImageCache(10);
+		cache.put(1, new byte[4]);
+		cache.put(2, new byte[4]);
+		assertEquals(8, cache.getSize());
+
+		// touching 1 makes 2 the least recently used one
+		assertNotNull(cache.get(1));
+		cache.put(3, new byte[4]);
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertEquals(8, cache.getSize());
+
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testBudget() {
+		ImageCache cache = new ImageCache(10);
+
+		// larger than the whole budget
+		cache.put(1, new byte[11]);
+		assertEquals(0, cache.getCount());
+
+		cache.put(2, new byte[5]);
+		cache.put(3, new byte[5]);
+		cache.setByteBudget(5);
+		assertEquals(1, cache.getCount());
+		assertNotNull(cache.get(3));
+
+		// replacing an entry doesn't count its old size
+		cache.put(3, new byte[2]);
+		assertEquals(2, cache.getSize());
+
+		cache.invalidate(3);
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get(3));
+	}
+}
@@ -0,0 +1,194 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package datastore;
+
+import datamodel.Item;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman
+ */
+public class WriteBehindQueueTest {
+	IDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		dao = new H2DAO(System.getProperty("user.home") + File.separator + "tb2wbtest");
+		dao.open(true);
+		assertTrue(dao.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+		assertTrue(dao.addUpdateItem(new Item("Google", "http://google.com"), false));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.close();
+		Files.deleteIfExists(Paths.get(dao.getPath()));
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(dao, 10, 60000);
+		Item item = dao.getItem(1);
+		for (int i = 0; i < 100; ++i) {
+			item.setInfo("edit " + i);
+			queue.update(item);
+		}
+		item.setPrivy(true);
+		queue.update(item);
+		assertFalse(item.isDirty());
+		assertEquals(1, queue.getPendingCount());
+
+		assertTrue(queue.flush().isEmpty());
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(1, queue.getBatchCount());
+		Item stored = dao.getItem(1);
+		assertEquals("edit 99", stored.getInfo());
+		assertTrue(stored.isPrivy());
+		queue.close();
+	}
+
+	@Test
+	public void testCloseWritesPending() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(dao, 1, 60000);
+		Item item1 = dao.getItem(1);
+		Item item2 = dao.getItem(2);
+		item1.setName("AHS2");
+		item2.setName("Google2");
+		queue.update(item1);
+		// the queue is full, so this waits for the first one to be written
+		queue.update(item2);
+		queue.close();
+
+		assertEquals("AHS2", dao.getItem(1).getName());
+		assertEquals("Google2", dao.getItem(2).getName());
+		try {
+			queue.update(item1);
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+	}
+
+	@Test
+	public void testRejectedUpdates() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(dao, 10, 60000);
+		Item item1 = dao.getItem(1);
+		Item item2 = dao.getItem(2);
+		item1.setRef("http://google.com");
+		item1.setName("AHS2");
+		item2.setName("Google2");
+		queue.update(item1);
+		queue.update(item2);
+
+		List<Item> rejected = queue.flush();
+		assertEquals(1, rejected.size());
+		assertEquals(1, rejected.get(0).getId());
+		assertEquals("http://google.com", rejected.get(0).getRef());
+		assertTrue(rejected.get(0).isDirty());
+		assertEquals("AHS", dao.getItem(1).getName());
+		assertEquals("Google2", dao.getItem(2).getName());
+		assertTrue(queue.flush().isEmpty());
+
+		// rejects not taken by a flush are reported by close
+		item1.setInfo("still colliding");
+		queue.update(item1);
+		try {
+			queue.close();
+			fail();
+		} catch (Exception ignored) {
+		}
+	}
+
+	@Test
+	public void testFailedWriteIsKept() throws Exception {
+		final boolean[] fail = {false};
+		H2DAO failing = new H2DAO(System.getProperty("user.home") + File.separator + "tb2wbtest2") {
+			@Override
+			public boolean addUpdateItem(Item item, boolean update) throws Exception {
+				// fails the second item of the batch, once the first one is written
+				if (fail[0] && item.getId() == 2) throw new Exception("write failed");
+				return super.addUpdateItem(item, update);
+			}
+		};
+		failing.open(true);
+		try {
+			assertTrue(failing.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+			assertTrue(failing.addUpdateItem(new Item("Google", "http://google.com"), false));
+			fail[0] = true;
+			WriteBehindQueue queue = new WriteBehindQueue(failing, 10, 60000);
+			Item item1 = failing.getItem(1);
+			Item item2 = failing.getItem(2);
+			item1.setName("AHS2");
+			item2.setName("Google2");
+			queue.update(item1);
+			queue.update(item2);
+			try {
+				queue.flush();
+				fail();
+			} catch (Exception ignored) {
+			}
+			assertEquals(2, queue.getPendingCount());
+			assertEquals("AHS", failing.getItem(1).getName());
+			assertEquals("Google", failing.getItem(2).getName());
+
+			fail[0] = false;
+			assertTrue(queue.flush().isEmpty());
+			assertEquals(0, queue.getPendingCount());
+			assertEquals("AHS2", failing.getItem(1).getName());
+			assertEquals("Google2", failing.getItem(2).getName());
+			queue.close();
+		} finally {
+			failing.close();
+			Files.deleteIfExists(Paths.get(failing.getPath()));
+		}
+	}
+
+	@Test
+	public void testCancelledWriteIsResumed() throws Exception {
+		final boolean[] cancel = {false};
+		IDAO cancelling = new H2DAO(System.getProperty("user.home") + File.separator + "tb2wbtest3") {
+			@Override
+			public boolean addUpdateItem(Item item, boolean update) throws Exception {
+				boolean stored = super.addUpdateItem(item, update);
+				if (cancel[0]) {
+					cancel[0] = false;
+					cancel();
+				}
+				return stored;
+			}
+		};
+		cancelling.open(true);
+		try {
+			assertTrue(cancelling.addUpdateItem(new Item("AHS", "http://ahs.pw"), false));
+			assertTrue(cancelling.addUpdateItem(new Item("Google", "http://google.com"), false));
+			cancel[0] = true;
+			WriteBehindQueue queue = new WriteBehindQueue(cancelling, 10, 60000);
+			Item item1 = cancelling.getItem(1);
+			Item item2 = cancelling.getItem(2);
+			item1.setName("AHS2");
+			item2.setName("Google2");
+			queue.update(item1);
+			queue.update(item2);
+
+			// the first write stops after one item and the second one resumes
+			assertTrue(queue.flush().isEmpty());
+			assertEquals(2, queue.getBatchCount());
+			assertEquals("AHS2", cancelling.getItem(1).getName());
+			assertEquals("Google2", cancelling.getItem(2).getName());
+			queue.close();
+		} finally {
+			cancelling.close();
+			Files.deleteIfExists(Paths.get(cancelling.getPath()));
+		}
+	}
+}
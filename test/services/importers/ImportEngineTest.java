@@ -0,0 +1,266 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package services.importers;
+
+import datamodel.Item;
+import datamodel.Tag;
+import datastore.H2DAO;
+import datastore.IDAO;
+import datastore.ImportCheckpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman
+ */
+public class ImportEngineTest {
+	IDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		dao = new H2DAO(System.getProperty("user.home") + File.separator + "tb2importtest");
+		dao.open(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.close();
+		Files.deleteIfExists(Paths.get(dao.getPath()));
+	}
+
+	private static List<String> makeRecords(int count) {
+		List<String> records = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) records.add("Site " + i + "|http://site" + i + ".com");
+		return records;
+	}
+
+	private static final ImportEngine.RecordParser<String> PARSER = new ImportEngine.RecordParser<String>() {
+		@Override
+		public Item parse(String record) {
+			String[] parts = record.split("\\|");
+			return new Item(parts[0], parts[1]);
+		}
+	};
+
+	@Test
+	public void testParallelImport() throws Exception {
+		Item stored = new Item("Old", "http://site7.com");
+		assertTrue(dao.addUpdateItem(stored, false));
+
+		ImportConfigs configs = new ImportConfigs();
+		configs.addTags(new Tag("imported"));
+		configs.setCollisionOption(ImportConfigs.CollisionOption.skip, false);
+		configs.setCollisionOption(ImportConfigs.CollisionOption.take_name, true);
+
+		// small queues and batches so every stage has to wait for the others
+		ImportEngine engine = new ImportEngine(dao, configs, 4, 8, 100);
+		assertEquals(2000, engine.run(makeRecords(2000).iterator(), PARSER));
+		assertEquals(2000, dao.getItemCount());
+
+		Item item = new Item(null);
+		assertTrue(dao.itemExist("http://site7.com", item));
+		assertEquals(stored.getId(), item.getId());
+		assertEquals("Site 7", item.getName());
+		assertTrue(dao.itemExist("http://site1999.com", item));
+		assertEquals("imported", item.getTagsAsString(","));
+	}
+
+	@Test
+	public void testRepeatedRefs() throws Exception {
+		Item stored = new Item("Old", "http://site7.com");
+		assertTrue(dao.addUpdateItem(stored, false));
+
+		ImportConfigs configs = new ImportConfigs();
+		configs.setCollisionOption(ImportConfigs.CollisionOption.skip, false);
+		configs.setCollisionOption(ImportConfigs.CollisionOption.take_tags_add, true);
+
+		// refs repeated within a batch and across batches, both for a stored item and for a new one
+		List<String> records = makeRecords(300);
+		records.set(0, "A|http://site7.com|a");
+		records.set(150, "B|http://site7.com|b");
+		records.set(1, "C|http://new.com|c");
+		records.set(2, "D|http://new.com|d");
+		records.set(250, "E|http://new.com|e");
+		ImportEngine engine = new ImportEngine(dao, configs, 4, 8, 100);
+		engine.run(records.iterator(), new ImportEngine.RecordParser<String>() {
+			@Override
+			public Item parse(String record) throws Exception {
+				Item item = PARSER.parse(record);
+				String[] parts = record.split("\\|");
+				if (parts.length > 2) item.addTag(new Tag(parts[2]));
+				return item;
+			}
+		});
+		// 295 sites left, one of which is the stored one, and the new one
+		assertEquals(295 + 1, dao.getItemCount());
+
+		Item item = new Item(null);
+		assertTrue(dao.itemExist("http://site7.com", item));
+		assertEquals(stored.getId(), item.getId());
+		assertEquals("a,b", sortedTags(item));
+		assertTrue(dao.itemExist("http://new.com", item));
+		assertEquals("c,d,e", sortedTags(item));
+	}
+
+	private static String sortedTags(Item item) {
+		List<String> names = new ArrayList<>();
+		for (Tag t : item.getTags()) names.add(t.getName());
+		Collections.sort(names);
+		return String.join(",", names);
+	}
+
+	@Test
+	public void testFailureStopsImport() throws Exception {
+		final RuntimeException failure = new RuntimeException("bad record");
+		ImportEngine engine = new ImportEngine(dao, new ImportConfigs(), 2, 4, 10);
+		try {
+			engine.run(makeRecords(1000).iterator(), new ImportEngine.RecordParser<String>() {
+				@Override
+				public Item parse(String record) throws Exception {
+					if (record.startsWith("Site 500|")) throw failure;
+					return PARSER.parse(record);
+				}
+			});
+			fail();
+		} catch (RuntimeException e) {
+			assertSame(failure, e);
+		}
+		assertTrue(dao.getItemCount() < 1000);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		ImportConfigs configs = new ImportConfigs();
+		ImportEngine engine = new ImportEngine(dao, configs, 2, 4, 100);
+		try {
+			engine.run("sites.txt", makeRecords(1000).iterator(), new ImportEngine.RecordParser<String>() {
+				@Override
+				public Item parse(String record) throws Exception {
+					if (record.startsWith("Site 500|")) throw new IllegalStateException("crash");
+					return PARSER.parse(record);
+				}
+			});
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+		ImportCheckpoint checkpoint = dao.getImportCheckpoint("sites.txt");
+		assertNotNull(checkpoint);
+		assertEquals(configs.fingerprint(), checkpoint.getFingerprint());
+		long stored = dao.getItemCount();
+		assertTrue(checkpoint.getPosition() > 0 && checkpoint.getPosition() <= stored);
+		Item item = new Item(null);
+		assertTrue(dao.itemExist("http://site" + (checkpoint.getPosition() - 1) + ".com", item));
+
+		// records before the checkpoint are skipped; the rest of the stored ones are duplicates
+		assertEquals(1000 - stored, engine.run("sites.txt", makeRecords(1000).iterator(), PARSER));
+		assertEquals(1000, dao.getItemCount());
+		assertNull(dao.getImportCheckpoint("sites.txt"));
+	}
+
+	@Test
+	public void testResumeAfterFailedWrite() throws Exception {
+		dao.close();
+		Files.deleteIfExists(Paths.get(dao.getPath()));
+		final int[] calls = {0};
+		H2DAO failing = new H2DAO(System.getProperty("user.home") + File.separator + "tb2importtest") {
+			@Override
+			public boolean addUpdateItems(Collection<Item> updates, final Collection<Item> inserts, ImportCheckpoint checkpoint) throws Exception {
+				if (++calls[0] != 2) return super.addUpdateItems(updates, inserts, checkpoint);
+				// fail halfway through the new items, after the updates and a few JDBC batches are written
+				return super.addUpdateItems(updates, new AbstractCollection<Item>() {
+					@Override
+					public Iterator<Item> iterator() {
+						final Iterator<Item> itr = inserts.iterator();
+						return new Iterator<Item>() {
+							int i = 0;
+
+							@Override
+							public boolean hasNext() {
+								return itr.hasNext();
+							}
+
+							@Override
+							public Item next() {
+								if (++i > 50) throw new IllegalStateException("write failed");
+								return itr.next();
+							}
+
+							@Override
+							public void remove() {
+								throw new UnsupportedOperationException();
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return inserts.size();
+					}
+				}, checkpoint);
+			}
+		};
+		failing.setBatchSize(10);
+		dao = failing;
+		dao.open(true);
+		for (int i = 0; i < 10; ++i) assertTrue(dao.addUpdateItem(new Item("Old", "http://s" + i + ".com"), false));
+
+		// every 30th record updates a stored item, the others have no ref and can't be told apart on resume
+		List<String> records = new ArrayList<>(300);
+		for (int i = 0; i < 300; ++i) records.add(i % 30 == 0 ? "New " + i + "|http://s" + (i / 30) + ".com" : "Site " + i);
+		ImportConfigs configs = new ImportConfigs();
+		configs.setCollisionOption(ImportConfigs.CollisionOption.skip, false);
+		configs.setCollisionOption(ImportConfigs.CollisionOption.take_name, true);
+		ImportEngine.RecordParser<String> parser = new ImportEngine.RecordParser<String>() {
+			@Override
+			public Item parse(String record) {
+				String[] parts = record.split("\\|");
+				return new Item(parts[0], parts.length > 1 ? parts[1] : null);
+			}
+		};
+		// a single worker keeps the records in order, so every batch ends at its checkpoint
+		ImportEngine engine = new ImportEngine(dao, configs, 1, 8, 100);
+		try {
+			engine.run("sites.txt", records.iterator(), parser);
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+
+		// only the first batch is stored, along with its checkpoint
+		assertEquals(100, dao.getImportCheckpoint("sites.txt").getPosition());
+		assertEquals(10 + 96, dao.getItemCount());
+		Item item = new Item(null);
+		assertTrue(dao.itemExist("http://s3.com", item));
+		assertEquals("New 90", item.getName());
+		assertTrue(dao.itemExist("http://s4.com", item));
+		assertEquals("Old", item.getName());
+
+		assertEquals(200, engine.run("sites.txt", records.iterator(), parser));
+		assertEquals(10 + 290, dao.getItemCount());
+		assertTrue(dao.itemExist("http://s4.com", item));
+		assertEquals("New 120", item.getName());
+		assertNull(dao.getImportCheckpoint("sites.txt"));
+	}
+
+	@Test
+	public void testConfigsFingerprint() {
+		ImportConfigs configs = new ImportConfigs();
+		assertEquals(new ImportConfigs().fingerprint(), configs.fingerprint());
+		configs.addTags(new Tag("imported"));
+		assertFalse(new ImportConfigs().fingerprint().equals(configs.fingerprint()));
+	}
+}
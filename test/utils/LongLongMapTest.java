@@ -0,0 +1,50 @@
+/** Copyright (C) 2014 - Anas H. Sulaiman (ahs.pw)
+* 			All Rights Reserved.
+*/
+
+package utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Author: Anas H. Sulaiman
+ */
+public class LongLongMapTest {
+	@Test
+	public void testPutGet() throws Exception {
+		LongLongMap map = new LongLongMap(0);
+		assertTrue(map.isEmpty());
+		assertEquals(-1, map.get(7, -1));
+
+		map.put(7, 1);
+		map.put(-7, 2);
+		map.put(0, 3);
+		map.put(7, 4);
+		assertEquals(3, map.size());
+		assertEquals(4, map.get(7, -1));
+		assertEquals(2, map.get(-7, -1));
+		assertEquals(3, map.get(0, -1));
+		assertTrue(map.containsKey(0));
+		assertFalse(map.containsKey(1));
+	}
+
+	@Test
+	public void testGrowing() throws Exception {
+		LongLongMap map = new LongLongMap();
+		for (long k = 0; k < 100000; k += 2) map.put(k << 20, k);
+		assertEquals(50000, map.size());
+		for (long k = 0; k < 100000; k++) {
+			assertEquals(k % 2 == 0 ? k : -1, map.get(k << 20, -1));
+		}
+
+		long[] keys = map.keys();
+		Arrays.sort(keys);
+		assertEquals(50000, keys.length);
+		assertEquals(0, keys[0]);
+		assertEquals(99998L << 20, keys[keys.length - 1]);
+	}
+}